@@ -21,9 +21,63 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.FileDescriptor;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.List;
 import java.util.ArrayList;
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
 import java.lang.Math;
+import java.lang.management.ManagementFactory;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -35,11 +89,33 @@ public class Amazon {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // change feed of the write paths, enabled with -Damazon.journal=<directory>;
+   // one writer per directory, shared by every connection of the process that
+   // holds the directory's lock; other processes run without journaling
+   private static EventJournal _journal = null;
+
+   // statement trace, enabled with -Damazon.trace=<prefix>; each process
+   // appends to <prefix>.<pid>, shared by every connection of the process
+   private static QueryTrace _trace = null;
+
+   // numbers the connections of the process for the statement trace
+   private static final AtomicInteger SESSIONS = new AtomicInteger();
+   private final int _session = SESSIONS.incrementAndGet();
+
+   // cross-store product search, loaded on first search
+   private ProductSearchIndex _searchIndex = null;
+
+   // product name <-> productID, shared by every connection of the process
+   private static final ProductDictionary _products = new ProductDictionary();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // answers of the batch command the current thread is running, see input()
+   static final ThreadLocal<BufferedReader> scripted = new ThreadLocal<BufferedReader>();
+
    /**
     * Creates a new instance of Amazon store
     *
@@ -60,13 +136,38 @@ public class Amazon {
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
          System.out.println("Done");
+
+         String journalDir = System.getProperty("amazon.journal");
+         String traceFile = System.getProperty("amazon.trace");
+         synchronized (Amazon.class) {
+            if (journalDir != null && _journal == null){
+               try {
+                  _journal = new EventJournal(new File(journalDir), EventJournal.DEFAULT_SEGMENT_SIZE);
+               }catch (IOException e){
+                  System.err.println("Event journal disabled: " + e.getMessage());
+               }
+            }
+            if (traceFile != null && _trace == null){
+               try {
+                  _trace = new QueryTrace(new File(traceFile + "." + QueryTrace.PROCESS));
+               }catch (IOException e){
+                  System.err.println("Query trace disabled: " + e.getMessage());
+               }
+            }
+         }
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
+         throw new SQLException("Unable to connect to database " + dbname, e);
       }//end catch
    }//end Amazon
 
+   // records a statement that started at start (System.nanoTime) when tracing is on
+   private void trace(byte kind, String sql, long start) {
+      if (_trace != null)
+         _trace.record(this._session, kind, sql, start, System.nanoTime() - start);
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -81,6 +182,7 @@ public class Amazon {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
+      long start = System.nanoTime ();
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
@@ -89,6 +191,7 @@ public class Amazon {
 
       // close the instruction
       stmt.close ();
+      trace (QueryTrace.UPDATE, sql, start);
    }//end executeUpdate
 
    /**
@@ -101,6 +204,7 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      long start = System.nanoTime ();
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
@@ -131,6 +235,7 @@ public class Amazon {
          ++rowCount;
       }//end while
       stmt.close ();
+      trace (QueryTrace.QUERY, query, start);
       return rowCount;
    }//end executeQuery
 
@@ -144,6 +249,7 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      long start = System.nanoTime ();
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
@@ -168,6 +274,7 @@ public class Amazon {
         result.add(record);
       }//end while
       stmt.close ();
+      trace (QueryTrace.QUERY, query, start);
       return result;
    }//end executeQueryAndReturnResult
 
@@ -180,6 +287,7 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       long start = System.nanoTime ();
        // creates a statement object
        Statement stmt = this._connection.createStatement ();
 
@@ -193,6 +301,7 @@ public class Amazon {
           rowCount++;
        }//end while
        stmt.close ();
+       trace (QueryTrace.QUERY, query, start);
        return rowCount;
    }
 
@@ -214,10 +323,1827 @@ public class Amazon {
 	return -1;
    }
 
+   /**
+    * Starts a unit of work on the physical connection. Every statement issued
+    * through this Amazon object until the unit is committed or rolled back
+    * runs inside one transaction, and statements queued with addBatch are
+    * sent to the DBMS right before the commit. The bundled JDBC driver
+    * still sends a batch one statement at a time, so callers that need one
+    * round trip should fold their rows into a single statement instead.
+    *
+    * @return the open unit of work
+    * @throws java.sql.SQLException when the transaction cannot be started
+    */
+   public UnitOfWork beginUnitOfWork() throws SQLException {
+      return new UnitOfWork();
+   }//end beginUnitOfWork
+
+   /**
+    * A group of statements that is committed (or rolled back) as a whole.
+    * Typical use:
+    *
+    *    Amazon.UnitOfWork work = esql.beginUnitOfWork();
+    *    try {
+    *       esql.executeUpdate(...);
+    *       work.addBatch(...);
+    *       work.commit();
+    *    } finally {
+    *       work.rollback();   // no-op once committed
+    *    }
+    */
+   public class UnitOfWork {
+      // statements queued for JDBC batching, created on first use
+      private Statement batch = null;
+      private int batchSize = 0;
+      private boolean open = true;
+
+      private UnitOfWork() throws SQLException {
+         long start = System.nanoTime();
+         _connection.setAutoCommit(false);
+         trace(QueryTrace.BEGIN, null, start);
+      }
+
+      /**
+       * Queues an update SQL statement (typically an audit row) to be sent
+       * with the rest of the batch when the unit is committed.
+       *
+       * @param sql the input SQL string
+       * @throws java.sql.SQLException when the statement cannot be queued
+       */
+      public void addBatch(String sql) throws SQLException {
+         if (batch == null)
+            batch = _connection.createStatement();
+         batch.addBatch(sql);
+         ++batchSize;
+         trace(QueryTrace.BATCH, sql, System.nanoTime());
+      }//end addBatch
+
+      /**
+       * @return the number of statements waiting in the batch
+       */
+      public int getBatchSize() {
+         return batchSize;
+      }
+
+      /**
+       * Sends the queued batch and commits the transaction. If anything
+       * fails the whole unit is rolled back and the exception rethrown.
+       *
+       * @throws java.sql.SQLException when the batch or the commit failed
+       */
+      public void commit() throws SQLException {
+         if (!open)
+            throw new SQLException("Unit of work is already closed");
+         try {
+            long start = System.nanoTime();
+            if (batch != null)
+               batch.executeBatch();
+            _connection.commit();
+            open = false;
+            trace(QueryTrace.COMMIT, null, start);
+         }catch (SQLException e){
+            rollback();
+            throw e;
+         }finally{
+            close();
+         }//end try
+      }//end commit
+
+      /**
+       * Discards every statement issued in this unit. Does nothing once the
+       * unit has been committed or rolled back.
+       */
+      public void rollback() {
+         if (!open)
+            return;
+         open = false;
+         try{
+            long start = System.nanoTime();
+            _connection.rollback();
+            trace(QueryTrace.ROLLBACK, null, start);
+         }catch (SQLException e){
+            // ignored.
+         }finally{
+            close();
+         }//end try
+      }//end rollback
+
+      // releases the batch statement and gives the connection back to autocommit
+      private void close() {
+         try{
+            if (batch != null)
+               batch.close();
+            batch = null;
+            batchSize = 0;
+            if (!open)
+               _connection.setAutoCommit(true);
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end UnitOfWork
+
+   /**
+    * Method to look up the productID of a product name through the shared
+    * ProductDictionary cache.
+    *
+    * @param productName the product name, trailing blanks are ignored
+    * @return the productID, or -1 when no product has that name
+    * @throws java.sql.SQLException when failed to execute the lookup
+    */
+   public int productId(String productName) throws SQLException {
+      return _products.idFor(this, productName);
+   }//end productId
+
+   /**
+    * Method to look up the name of a productID, as returned by a query,
+    * through the shared ProductDictionary cache.
+    *
+    * @param productId the productID column value
+    * @return the product name
+    * @throws java.sql.SQLException when failed to execute the lookup
+    */
+   public String productName(String productId) throws SQLException {
+      return _products.nameFor(this, Integer.parseInt(productId.trim()));
+   }//end productName
+
+   /**
+    * In-JVM copy of the ProductDictionary table, product name to productID
+    * and back. Products are never renamed, so entries stay valid once read;
+    * misses are read from the database one row, or one batch of names, at a
+    * time.
+    */
+   public static class ProductDictionary {
+      private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+      private final Map<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+
+      public int idFor(Amazon esql, String productName) throws SQLException {
+         String name = productName.trim();
+         Integer id = ids.get(name);
+         if (id == null){
+            List<List<String>> row = esql.executeQueryAndReturnResult(String.format("SELECT productID, productName FROM ProductDictionary WHERE productName = '%s';", name));
+            if (row.size() == 0)
+               return -1;
+            id = put(row.get(0));
+         }
+         return id;
+      }
+
+      public String nameFor(Amazon esql, int productId) throws SQLException {
+         String name = names.get(productId);
+         if (name == null){
+            List<List<String>> row = esql.executeQueryAndReturnResult(String.format("SELECT productID, productName FROM ProductDictionary WHERE productID = %d;", productId));
+            if (row.size() == 0)
+               throw new SQLException("Unknown productID " + productId);
+            put(row.get(0));
+            name = names.get(productId);
+         }
+         return name;
+      }
+
+      /**
+       * Looks up many names at once; the ones not cached yet are read with a
+       * single IN query.
+       *
+       * @param esql the connection to read from
+       * @param productNames the product names, trailing blanks are ignored
+       * @return the productID of each name, -1 when no product has that name
+       * @throws java.sql.SQLException when failed to execute the query
+       */
+      public int[] idsFor(Amazon esql, List<String> productNames) throws SQLException {
+         StringBuilder missing = new StringBuilder();
+         Set<String> queued = new HashSet<String>();
+         for (int i = 0; i < productNames.size(); ++i){
+            String name = productNames.get(i).trim();
+            if (!ids.containsKey(name) && queued.add(name))
+               missing.append(missing.length() == 0 ? "" : ",").append('\'').append(name.replace("'", "''")).append('\'');
+         }
+         if (missing.length() > 0){
+            List<List<String>> rows = esql.executeQueryAndReturnResult(String.format("SELECT productID, productName FROM ProductDictionary WHERE productName IN (%s);", missing));
+            for (int i = 0; i < rows.size(); ++i)
+               put(rows.get(i));
+         }
+         int[] result = new int[productNames.size()];
+         for (int i = 0; i < result.length; ++i){
+            Integer id = ids.get(productNames.get(i).trim());
+            result[i] = id == null ? -1 : id;
+         }
+         return result;
+      }
+
+      /**
+       * Reads the whole dictionary, saving the per-name lookups later on.
+       *
+       * @param esql the connection to read from
+       * @throws java.sql.SQLException when failed to execute the query
+       */
+      public void load(Amazon esql) throws SQLException {
+         List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT productID, productName FROM ProductDictionary;");
+         for (int i = 0; i < rows.size(); ++i)
+            put(rows.get(i));
+      }
+
+      private int put(List<String> row) {
+         int id = Integer.parseInt(row.get(0).trim());
+         String name = row.get(1).trim();
+         ids.put(name, id);
+         names.put(id, name);
+         return id;
+      }
+   }//end ProductDictionary
+
+   /**
+    * One line of a supply request manifest.
+    */
+   public static class SupplyRequestLine {
+      public final String productName;
+      public final int unitsRequested;
+      public final int warehouseId;
+
+      public SupplyRequestLine(String productName, int unitsRequested, int warehouseId) {
+         this.productName = productName.trim();
+         this.unitsRequested = unitsRequested;
+         this.warehouseId = warehouseId;
+      }
+
+      /**
+       * Parses "productName,units,warehouseID". The name may itself contain
+       * commas, the last two fields are the numbers.
+       *
+       * @param line the manifest line
+       * @return the parsed line
+       * @throws java.lang.NumberFormatException when the numbers are malformed
+       */
+      public static SupplyRequestLine parse(String line) {
+         int warehouseAt = line.lastIndexOf(',');
+         int unitsAt = warehouseAt < 0 ? -1 : line.lastIndexOf(',', warehouseAt - 1);
+         if (unitsAt < 0)
+            throw new NumberFormatException("expected productName,units,warehouseID but got: " + line);
+         return new SupplyRequestLine(line.substring(0, unitsAt), Integer.parseInt(line.substring(unitsAt + 1, warehouseAt).trim()), Integer.parseInt(line.substring(warehouseAt + 1).trim()));
+      }
+   }//end SupplyRequestLine
+
+   // rows per multi-row INSERT statement of a supply request batch
+   private static final int SUPPLY_ROWS_PER_STATEMENT = 500;
+
+   /**
+    * Method to place the supply requests of a whole manifest for one store.
+    * Product names are resolved with one ProductDictionary query, then all
+    * lines are validated with one query for the products and one for the
+    * warehouses; if every line is valid they are inserted with
+    * multi-row INSERTs sent as one JDBC batch in a single transaction,
+    * otherwise nothing is inserted. The caller checks that managerId
+    * manages the store.
+    *
+    * @param managerId the manager placing the requests
+    * @param storeId the store being restocked
+    * @param lines the manifest
+    * @return the problems found, one per bad line; empty when the requests were placed
+    * @throws java.sql.SQLException when the validation or the insert failed
+    */
+   public List<String> placeSupplyRequestBatch(String managerId, int storeId, List<SupplyRequestLine> lines) throws SQLException {
+      List<String> problems = new ArrayList<String>();
+      if (lines.size() == 0)
+         return problems;
+
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; i < lines.size(); ++i)
+         names.add(lines.get(i).productName);
+      int[] productIds = _products.idsFor(this, names);
+      StringBuilder products = new StringBuilder();
+      StringBuilder warehouses = new StringBuilder();
+      for (int i = 0; i < lines.size(); ++i){
+         products.append(i == 0 ? "" : ",").append(productIds[i]);
+         warehouses.append(i == 0 ? "" : ",").append(lines.get(i).warehouseId);
+      }
+
+      UnitOfWork work = beginUnitOfWork();
+      try {
+         Set<String> stocked = new HashSet<String>();
+         List<List<String>> rows = executeQueryAndReturnResult(String.format("SELECT productID FROM Product WHERE storeID = %d AND productID IN (%s);", storeId, products));
+         for (int i = 0; i < rows.size(); ++i)
+            stocked.add(rows.get(i).get(0).trim());
+         Set<String> known = new HashSet<String>();
+         rows = executeQueryAndReturnResult(String.format("SELECT warehouseID FROM Warehouse WHERE warehouseID IN (%s);", warehouses));
+         for (int i = 0; i < rows.size(); ++i)
+            known.add(rows.get(i).get(0).trim());
+
+         for (int i = 0; i < lines.size(); ++i){
+            SupplyRequestLine line = lines.get(i);
+            if (!stocked.contains(Integer.toString(productIds[i])))
+               problems.add(String.format("line %d: product %s doesn't exist in storeID %d", i + 1, line.productName, storeId));
+            else if (!known.contains(Integer.toString(line.warehouseId)))
+               problems.add(String.format("line %d: warehouse %d doesn't exist", i + 1, line.warehouseId));
+            else if (line.unitsRequested <= 0)
+               problems.add(String.format("line %d: units requested must be positive", i + 1));
+         }
+         if (problems.size() > 0)
+            return problems;
+
+         List<String> values = new ArrayList<String>();
+         for (int i = 0; i < lines.size(); ++i)
+            values.add(String.format("(%s, %d, %d, %d, %d)", managerId, lines.get(i).warehouseId, storeId, productIds[i], lines.get(i).unitsRequested));
+         addSupplyRequestInserts(work, values);
+         work.commit();
+      }
+      finally {
+         work.rollback();
+      }
+
+      for (int i = 0; i < lines.size(); ++i)
+         journal(EventJournal.SUPPLY_REQUESTED, managerId, storeId, lines.get(i).productName, lines.get(i).unitsRequested, lines.get(i).warehouseId);
+      refreshSearchIndex(storeId, null);
+      return problems;
+   }//end placeSupplyRequestBatch
+
+   // queues multi-row INSERTs of "(managerID, warehouseID, storeID, productID, unitsRequested)" tuples
+   private static void addSupplyRequestInserts(UnitOfWork work, List<String> values) throws SQLException {
+      for (int from = 0; from < values.size(); from += SUPPLY_ROWS_PER_STATEMENT){
+         StringBuilder insert = new StringBuilder("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productID, unitsRequested) VALUES ");
+         for (int i = from; i < Math.min(from + SUPPLY_ROWS_PER_STATEMENT, values.size()); ++i)
+            insert.append(i == from ? "" : ", ").append(values.get(i));
+         work.addBatch(insert.toString());
+      }
+   }
+
+   /**
+    * One supply request proposed by the restock planner.
+    */
+   public static class RestockLine {
+      public final int storeId;
+      public final String managerId;
+      public final int productId;
+      public final int unitsRequested;
+      public final int warehouseId;
+      public final double distance;
+
+      RestockLine(int storeId, String managerId, int productId, int unitsRequested, int warehouseId, double distance) {
+         this.storeId = storeId;
+         this.managerId = managerId;
+         this.productId = productId;
+         this.unitsRequested = unitsRequested;
+         this.warehouseId = warehouseId;
+         this.distance = distance;
+      }
+   }//end RestockLine
+
+   /**
+    * Method to plan the restocking of every product, across all stores,
+    * whose stock is below a threshold. Each shortfall is topped up to the
+    * target level from the warehouse nearest to its store. The schema does
+    * not track warehouse inventory, so every warehouse is considered able
+    * to supply every product. Stores are planned in parallel.
+    *
+    * @param threshold products with fewer units than this are restocked
+    * @param targetUnits the number of units to restock to
+    * @return the proposed requests ordered by store
+    * @throws java.sql.SQLException when failed to read stock or locations
+    */
+   public List<RestockLine> planRestock(int threshold, int targetUnits) throws SQLException {
+      final List<List<String>> warehouses = executeQueryAndReturnResult("SELECT warehouseID, latitude, longitude FROM Warehouse;");
+      List<List<String>> stores = executeQueryAndReturnResult("SELECT storeID, latitude, longitude, managerID FROM Store ORDER BY storeID;");
+      List<List<String>> low = executeQueryAndReturnResult(String.format("SELECT storeID, productID, numberOfUnits FROM ProductStock WHERE numberOfUnits < %d ORDER BY storeID, productID;", threshold));
+      if (warehouses.size() == 0 || low.size() == 0)
+         return new ArrayList<RestockLine>();
+
+      final Map<String, List<List<String>>> shortfalls = new HashMap<String, List<List<String>>>();
+      for (int i = 0; i < low.size(); ++i){
+         String storeId = low.get(i).get(0).trim();
+         if (!shortfalls.containsKey(storeId))
+            shortfalls.put(storeId, new ArrayList<List<String>>());
+         shortfalls.get(storeId).add(low.get(i));
+      }
+
+      final int target = targetUnits;
+      List<Callable<List<RestockLine>>> tasks = new ArrayList<Callable<List<RestockLine>>>();
+      for (final List<String> store : stores){
+         if (!shortfalls.containsKey(store.get(0).trim()))
+            continue;
+         tasks.add(new Callable<List<RestockLine>>() {
+            public List<RestockLine> call() {
+               double storeLat = Double.parseDouble(store.get(1));
+               double storeLong = Double.parseDouble(store.get(2));
+               int nearest = 0;
+               double nearestDistance = Double.MAX_VALUE;
+               for (int w = 0; w < warehouses.size(); ++w){
+                  double distance = calculateDistance(storeLat, storeLong, Double.parseDouble(warehouses.get(w).get(1)), Double.parseDouble(warehouses.get(w).get(2)));
+                  if (distance < nearestDistance){
+                     nearest = w;
+                     nearestDistance = distance;
+                  }
+               }
+               int storeId = Integer.parseInt(store.get(0).trim());
+               int warehouseId = Integer.parseInt(warehouses.get(nearest).get(0).trim());
+               List<RestockLine> lines = new ArrayList<RestockLine>();
+               for (List<String> product : shortfalls.get(store.get(0).trim())){
+                  int units = target - Integer.parseInt(product.get(2).trim());
+                  if (units > 0)
+                     lines.add(new RestockLine(storeId, store.get(3).trim(), Integer.parseInt(product.get(1).trim()), units, warehouseId, nearestDistance));
+               }
+               return lines;
+            }
+         });
+      }
+
+      List<RestockLine> plan = new ArrayList<RestockLine>();
+      try {
+         for (Future<List<RestockLine>> lines : ForkJoinPool.commonPool().invokeAll(tasks))
+            plan.addAll(lines.get());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Restock planning interrupted");
+      }catch (ExecutionException e){
+         throw new SQLException("Restock planning failed: " + e.getCause());
+      }
+      return plan;
+   }//end planRestock
+
+   /**
+    * Method to place a restock plan as supply requests, all in one
+    * transaction, each on behalf of the manager of its store.
+    *
+    * @param plan the lines returned by planRestock
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public void placeRestockPlan(List<RestockLine> plan) throws SQLException {
+      List<String> values = new ArrayList<String>();
+      for (RestockLine line : plan)
+         values.add(String.format("(%s, %d, %d, %d, %d)", line.managerId, line.warehouseId, line.storeId, line.productId, line.unitsRequested));
+      UnitOfWork work = beginUnitOfWork();
+      try {
+         addSupplyRequestInserts(work, values);
+         work.commit();
+      }
+      finally {
+         work.rollback();
+      }
+      int lastStore = -1;
+      for (RestockLine line : plan){
+         journal(EventJournal.SUPPLY_REQUESTED, line.managerId, line.storeId, productName(Integer.toString(line.productId)), line.unitsRequested, line.warehouseId);
+         if (line.storeId != lastStore)
+            refreshSearchIndex(line.storeId, null);
+         lastStore = line.storeId;
+      }
+   }//end placeRestockPlan
+
+   /**
+    * Method to drop the pending stock deltas of one product. Must run in the
+    * same unit of work as a statement that sets numberOfUnits to an absolute
+    * value, otherwise the old deltas would be added on top of the new count.
+    *
+    * @param storeId the store of the product
+    * @param productName the name of the product
+    * @throws java.sql.SQLException when the delete failed
+    */
+   public void resetStockShards(int storeId, String productName) throws SQLException {
+      executeUpdate(String.format("DELETE FROM ProductStockShard WHERE storeID = %d AND productID = %d", storeId, productId(productName)));
+   }//end resetStockShards
+
+   /**
+    * Method to fold all sharded stock deltas back into Product.numberOfUnits.
+    * Orders do this every StockCounterConfig.compactEvery orders and
+    * compact_counters.sh does it from cron; this runs it on demand.
+    *
+    * @return the number of products whose count was updated
+    * @throws java.sql.SQLException when the compaction failed
+    */
+   public int compactStockShards() throws SQLException {
+      List<List<String>> folded = executeQueryAndReturnResult("SELECT compact_stock_shards();");
+      return Integer.parseInt(folded.get(0).get(0));
+   }//end compactStockShards
+
+   /**
+    * Method to fold the sales the recordsales trigger appended to
+    * SalesRollupPending into the hour, day and week rollups. Reports read
+    * the pending rows as well, so this only keeps them cheap. It runs on the
+    * same schedule as compactStockShards.
+    *
+    * @return the number of orders folded
+    * @throws java.sql.SQLException when the compaction failed
+    */
+   public int compactSalesRollups() throws SQLException {
+      List<List<String>> folded = executeQueryAndReturnResult("SELECT compact_sales_rollups();");
+      return Integer.parseInt(folded.get(0).get(0));
+   }//end compactSalesRollups
+
+   /**
+    * Method to total the units ordered and the revenue of every product of a
+    * store over the window [from, to). The window is covered with the
+    * coarsest rollup buckets that fit inside it (whole weeks, then whole
+    * days, then hours at the edges), so the cost grows with the number of
+    * weeks in the window rather than with the number of orders. Orders not
+    * yet folded into the rollups are read from SalesRollupPending. Both ends
+    * are truncated to the hour.
+    *
+    * @param storeId the store to report on
+    * @param from the inclusive start of the window
+    * @param to the exclusive end of the window
+    * @return records of productName, units ordered, revenue by revenue desc
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> querySalesTotals(int storeId, LocalDateTime from, LocalDateTime to) throws SQLException {
+      LocalDateTime start = from.truncatedTo(ChronoUnit.HOURS);
+      LocalDateTime end = to.truncatedTo(ChronoUnit.HOURS);
+      List<String> ranges = new ArrayList<String>();
+
+      LocalDateTime dayStart = start.truncatedTo(ChronoUnit.DAYS);
+      if (dayStart.isBefore(start))
+         dayStart = dayStart.plusDays(1);
+      LocalDateTime dayEnd = end.truncatedTo(ChronoUnit.DAYS);
+      if (!dayStart.isBefore(dayEnd)){
+         // no whole day inside the window
+         addRollupRange(ranges, "Hour", storeId, start, end);
+      }
+      else {
+         LocalDateTime weekStart = dayStart.with(TemporalAdjusters.nextOrSame(DayOfWeek.MONDAY));
+         LocalDateTime weekEnd = dayEnd.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+         if (weekStart.isBefore(weekEnd)){
+            addRollupRange(ranges, "Week", storeId, weekStart, weekEnd);
+            addRollupRange(ranges, "Day", storeId, dayStart, weekStart);
+            addRollupRange(ranges, "Day", storeId, weekEnd, dayEnd);
+         }
+         else {
+            addRollupRange(ranges, "Day", storeId, dayStart, dayEnd);
+         }
+         addRollupRange(ranges, "Hour", storeId, start, dayStart);
+         addRollupRange(ranges, "Hour", storeId, dayEnd, end);
+      }
+      if (ranges.size() == 0)
+         return new ArrayList<List<String>>();
+      ranges.add(String.format("SELECT productID, unitsOrdered, revenue FROM SalesRollupPending WHERE storeID = %d AND orderTime >= '%s' AND orderTime < '%s'", storeId, Timestamp.valueOf(start), Timestamp.valueOf(end)));
+
+      StringBuilder query = new StringBuilder("SELECT productID, SUM(unitsOrdered), SUM(revenue) FROM (");
+      for (int i = 0; i < ranges.size(); ++i){
+         if (i > 0)
+            query.append(" UNION ALL ");
+         query.append(ranges.get(i));
+      }
+      query.append(") r GROUP BY productID ORDER BY SUM(revenue) DESC;");
+      List<List<String>> totals = executeQueryAndReturnResult(query.toString());
+      for (int i = 0; i < totals.size(); ++i)
+         totals.get(i).set(0, productName(totals.get(i).get(0)));
+      return totals;
+   }//end querySalesTotals
+
+   // appends the select over one rollup table for [from, to), skipping empty ranges
+   private static void addRollupRange(List<String> ranges, String granularity, int storeId, LocalDateTime from, LocalDateTime to) {
+      if (!from.isBefore(to))
+         return;
+      ranges.add(String.format("SELECT productID, unitsOrdered, revenue FROM SalesRollup%s WHERE storeID = %d AND bucket >= '%s' AND bucket < '%s'", granularity, storeId, Timestamp.valueOf(from), Timestamp.valueOf(to)));
+   }
+
+   /**
+    * Method to list the units ordered and the revenue of a store per bucket
+    * over the window [from, to), including orders not yet folded into the
+    * rollups.
+    *
+    * @param storeId the store to report on
+    * @param granularity one of hour, day or week
+    * @param from the start of the window, the bucket containing it is included
+    * @param to the exclusive end of the window
+    * @return records of bucket, units ordered, revenue ordered by bucket
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> querySalesSeries(int storeId, String granularity, LocalDateTime from, LocalDateTime to) throws SQLException {
+      String table;
+      if (granularity.equals("hour"))
+         table = "SalesRollupHour";
+      else if (granularity.equals("day"))
+         table = "SalesRollupDay";
+      else if (granularity.equals("week"))
+         table = "SalesRollupWeek";
+      else
+         throw new IllegalArgumentException("granularity must be hour, day or week");
+      String pending = String.format("SELECT storeID, date_trunc('%s', orderTime) AS bucket, unitsOrdered, revenue FROM SalesRollupPending", granularity);
+      return executeQueryAndReturnResult(String.format("SELECT bucket, SUM(unitsOrdered), SUM(revenue) FROM (SELECT storeID, bucket, unitsOrdered, revenue FROM %s UNION ALL %s) r WHERE storeID = %d AND bucket >= date_trunc('%s', timestamp '%s') AND bucket < '%s' GROUP BY bucket ORDER BY bucket;", table, pending, storeId, granularity, Timestamp.valueOf(from), Timestamp.valueOf(to)));
+   }//end querySalesSeries
+
+   /**
+    * Method to append an event to the journal when one is configured. A
+    * journal failure is reported but never fails the operation, the
+    * database stays the source of truth.
+    *
+    * @param type one of the EventJournal event types
+    * @param userId the customer or manager behind the event
+    * @param storeId the store of the product
+    * @param productName the product name
+    * @param units units ordered, requested or set, -1 when not known
+    * @param extra warehouseID or price, -1 when not known
+    */
+   public void journal(byte type, String userId, int storeId, String productName, int units, int extra) {
+      if (_journal == null)
+         return;
+      try{
+         _journal.append(type, Integer.parseInt(userId.trim()), storeId, productName, units, extra);
+      }catch (Exception e){
+         System.err.println("Event journal: " + e.getMessage());
+      }//end try
+   }//end journal
+
+   /**
+    * Append-only journal of the write paths (orders, supply requests and
+    * product updates) kept in memory-mapped segment files, so that local
+    * consumers can follow new events without polling the database.
+    *
+    * Each segment is a file named by its index and pre-sized to the segment
+    * size. A record is laid out as
+    *
+    *    int payloadLength | long sequence | long timestamp | byte type |
+    *    int userId | int storeId | int units | int extra | productName (UTF-8) |
+    *    int crc32
+    *
+    * The sequence is written last, so a reader that sees a non-zero sequence
+    * with a matching CRC sees a complete record. A position is the segment
+    * index in the high 32 bits and the offset in the segment in the low 32.
+    *
+    * A directory has a single writer: the constructor takes an exclusive
+    * lock on its writer.lock file and keeps it until close() or the end of
+    * the process. Any number of Tailers may read alongside it.
+    */
+   public static class EventJournal {
+      public static final byte ORDER_PLACED = 1;
+      public static final byte SUPPLY_REQUESTED = 2;
+      public static final byte PRODUCT_UPDATED = 3;
+
+      public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+      // payloadLength, sequence, timestamp and type
+      private static final int HEADER = 4 + 8 + 8 + 1;
+      private static final int TRAILER = 4;
+      // userId, storeId, units and extra precede the product name
+      private static final int FIXED_PAYLOAD = 16;
+      // written instead of a record when the rest of a segment is skipped
+      private static final int SEGMENT_END = -1;
+
+      private static final String LOCK_FILE = "writer.lock";
+      // directories this process writes; a second channel on a lock file
+      // would drop the process's lock when closed, so it is never opened
+      private static final Set<String> LOCKED = new HashSet<String>();
+
+      private final File dir;
+      private final int segmentSize;
+      // held for the life of the writer, see LOCK_FILE
+      private final FileChannel lockChannel;
+      private final FileLock lock;
+      private MappedByteBuffer segment;
+      private int segmentIndex;
+      private int offset;
+      private long lastSequence;
+
+      /**
+       * Opens (or creates) the journal in a directory and positions the
+       * writer after the last complete record.
+       *
+       * @param dir the directory holding the segment files
+       * @param segmentSize the size of newly created segments in bytes
+       * @throws java.io.IOException when another writer holds the directory
+       *         or a segment cannot be mapped
+       */
+      public EventJournal(File dir, int segmentSize) throws IOException {
+         if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create journal directory " + dir);
+         this.dir = dir;
+         this.segmentSize = segmentSize;
+
+         String key = dir.getCanonicalPath();
+         synchronized (LOCKED) {
+            if (!LOCKED.add(key))
+               throw new IOException("Journal " + dir + " is already being written by this process");
+         }
+         FileLock held = null;
+         FileChannel channel = null;
+         try {
+            channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            held = channel.tryLock();
+         }finally {
+            if (held == null){
+               if (channel != null)
+                  channel.close();
+               synchronized (LOCKED) {
+                  LOCKED.remove(key);
+               }
+            }
+         }
+         if (held == null)
+            throw new IOException("Journal " + dir + " is already being written by another process");
+         lockChannel = channel;
+         lock = held;
+         try {
+            open();
+         }catch (IOException e){
+            close();
+            throw e;
+         }
+      }//end EventJournal
+
+      // positions the writer after the last complete record, lock held
+      private void open() throws IOException {
+         int last = 0;
+         while (segmentFile(dir, last + 1).exists())
+            ++last;
+         // the sequence continues from the newest segment that has records
+         Tailer scan = new Tailer(dir, position(last, 0));
+         for (Event e = scan.next(); e != null; e = scan.next())
+            lastSequence = e.sequence;
+         for (int i = last - 1; i >= 0 && lastSequence == 0; --i){
+            Tailer previous = new Tailer(dir, position(i, 0));
+            for (Event e = previous.next(); e != null; e = previous.next())
+               lastSequence = e.sequence;
+         }
+         map(last);
+         offset = (int) scan.position();
+      }//end open
+
+      /**
+       * Releases the directory so another writer can open it.
+       */
+      public synchronized void close() {
+         try {
+            lock.release();
+            lockChannel.close();
+         }catch (IOException e){
+            // ignored.
+         }
+         synchronized (LOCKED) {
+            try {
+               LOCKED.remove(dir.getCanonicalPath());
+            }catch (IOException e){
+               // ignored.
+            }
+         }
+      }
+
+      /**
+       * Appends one event.
+       *
+       * @param type ORDER_PLACED, SUPPLY_REQUESTED or PRODUCT_UPDATED
+       * @param userId the customer or manager behind the event
+       * @param storeId the store of the product
+       * @param productName the product name
+       * @param units units ordered, requested or set, -1 when not known
+       * @param extra warehouseID for supply requests, price for product updates, -1 when not known
+       * @return the sequence number of the event
+       * @throws java.io.IOException when a new segment cannot be mapped
+       */
+      public synchronized long append(byte type, int userId, int storeId, String productName, int units, int extra) throws IOException {
+         byte[] name = productName.trim().getBytes(StandardCharsets.UTF_8);
+         int payloadLength = FIXED_PAYLOAD + name.length;
+         int recordLength = HEADER + payloadLength + TRAILER;
+         if (recordLength > segmentSize)
+            throw new IOException("Event does not fit in a journal segment");
+         if (offset + recordLength > segmentSize){
+            int full = offset;
+            MappedByteBuffer previous = segment;
+            map(segmentIndex + 1);
+            // the next segment exists before readers are told to move on
+            if (full + 4 <= segmentSize)
+               previous.putInt(full, SEGMENT_END);
+            offset = 0;
+         }
+
+         long sequence = lastSequence + 1;
+         ByteBuffer record = ByteBuffer.allocate(recordLength);
+         record.putInt(payloadLength).putLong(sequence).putLong(System.currentTimeMillis()).put(type);
+         record.putInt(userId).putInt(storeId).putInt(units).putInt(extra).put(name);
+         CRC32 crc = new CRC32();
+         crc.update(record.array(), 4, HEADER - 4 + payloadLength);
+         record.putInt((int) crc.getValue());
+         record.putLong(4, 0L);
+
+         ByteBuffer target = segment.duplicate();
+         target.position(offset);
+         target.put(record.array());
+         segment.putLong(offset + 4, sequence);
+         offset += recordLength;
+         lastSequence = sequence;
+         return sequence;
+      }//end append
+
+      /**
+       * @return the position right after the last appended record
+       */
+      public synchronized long position() {
+         return position(segmentIndex, offset);
+      }
+
+      // maps segment number index for writing, creating it when needed. A new
+      // segment is sized under a temporary name and renamed into place, so a
+      // Tailer never maps it shorter than the segment size
+      private void map(int index) throws IOException {
+         File target = segmentFile(dir, index);
+         if (!target.exists()){
+            File created = new File(dir, target.getName() + ".tmp");
+            RandomAccessFile file = new RandomAccessFile(created, "rw");
+            try {
+               file.setLength(segmentSize);
+            }
+            finally {
+               file.close();
+            }
+            Files.move(created.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+         }
+         RandomAccessFile file = new RandomAccessFile(target, "rw");
+         try {
+            if (file.length() < segmentSize)
+               file.setLength(segmentSize);
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            segmentIndex = index;
+         }
+         finally {
+            file.close();
+         }
+      }
+
+      static File segmentFile(File dir, int index) {
+         return new File(dir, String.format("%010d.journal", index));
+      }
+
+      static long position(int segmentIndex, int offset) {
+         return ((long) segmentIndex << 32) | offset;
+      }
+
+      /**
+       * One journal record. The payload is a read-only view of the mapped
+       * segment, nothing is copied until an accessor is called.
+       */
+      public static class Event {
+         public final long position;
+         public final long sequence;
+         public final long timestamp;
+         public final byte type;
+         private final ByteBuffer payload;
+
+         Event(long position, long sequence, long timestamp, byte type, ByteBuffer payload) {
+            this.position = position;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.payload = payload;
+         }
+         public int userId() { return payload.getInt(0); }
+         public int storeId() { return payload.getInt(4); }
+         public int units() { return payload.getInt(8); }
+         public int extra() { return payload.getInt(12); }
+         public String productName() {
+            byte[] name = new byte[payload.limit() - FIXED_PAYLOAD];
+            ByteBuffer view = payload.duplicate();
+            view.position(FIXED_PAYLOAD);
+            view.get(name);
+            return new String(name, StandardCharsets.UTF_8);
+         }
+         public ByteBuffer payload() {
+            return payload.asReadOnlyBuffer();
+         }
+         public String toString() {
+            String kind = type == ORDER_PLACED ? "order" : type == SUPPLY_REQUESTED ? "supply" : type == PRODUCT_UPDATED ? "update" : "type" + type;
+            return String.format("#%d %s %tF %<tT user %d store %d product %s units %d extra %d", sequence, kind, timestamp, userId(), storeId(), productName(), units(), extra());
+         }
+      }//end Event
+
+      /**
+       * Reads a journal from a position onwards. next() returns null once
+       * the reader has caught up; calling it again later picks up new events.
+       */
+      public static class Tailer {
+         private final File dir;
+         private int segmentIndex;
+         private int offset;
+         private MappedByteBuffer segment;
+
+         public Tailer(File dir, long position) {
+            this.dir = dir;
+            this.segmentIndex = (int) (position >>> 32);
+            this.offset = (int) position;
+         }
+
+         /**
+          * @return the position to resume from after the last returned event
+          */
+         public long position() {
+            return EventJournal.position(segmentIndex, offset);
+         }
+
+         /**
+          * @return the next complete event, or null when there is none yet
+          * @throws java.io.IOException when a segment cannot be mapped
+          */
+         public Event next() throws IOException {
+            while (true) {
+               if (segment == null){
+                  File file = segmentFile(dir, segmentIndex);
+                  if (!file.exists())
+                     return null;
+                  FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                  try {
+                     segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                  }
+                  finally {
+                     channel.close();
+                  }
+               }
+               int capacity = segment.capacity();
+               boolean skipped = offset + HEADER + TRAILER > capacity
+                  || segment.getInt(offset) == SEGMENT_END;
+               if (skipped){
+                  // a segment that grew since it was mapped is mapped again, not skipped
+                  if (offset + HEADER + TRAILER > capacity && segmentFile(dir, segmentIndex).length() > capacity){
+                     segment = null;
+                     continue;
+                  }
+                  if (!segmentFile(dir, segmentIndex + 1).exists())
+                     return null;
+                  ++segmentIndex;
+                  offset = 0;
+                  segment = null;
+                  continue;
+               }
+               long sequence = segment.getLong(offset + 4);
+               int payloadLength = segment.getInt(offset);
+               if (sequence == 0 || payloadLength < FIXED_PAYLOAD || offset + HEADER + payloadLength + TRAILER > capacity)
+                  return null;
+
+               ByteBuffer view = segment.duplicate();
+               view.position(offset + 4);
+               view.limit(offset + HEADER + payloadLength);
+               CRC32 crc = new CRC32();
+               crc.update(view);
+               if ((int) crc.getValue() != segment.getInt(offset + HEADER + payloadLength))
+                  return null;   // still being written
+
+               view.limit(offset + HEADER + payloadLength);
+               view.position(offset + HEADER);
+               Event event = new Event(position(), sequence, segment.getLong(offset + 12), segment.get(offset + 20), view.slice());
+               offset += HEADER + payloadLength + TRAILER;
+               return event;
+            }
+         }//end next
+      }//end Tailer
+   }//end EventJournal
+
+   // rows per FETCH when exporting the orders snapshot
+   private static final int SNAPSHOT_FETCH_ROWS = 10000;
+
+   /**
+    * Method to write every order, joined with the price of its product, to
+    * a columnar snapshot file for offline analytics (see OrdersSnapshot).
+    * Rows are read through a server-side cursor SNAPSHOT_FETCH_ROWS at a
+    * time, so only the primitive columns are held in memory. The bundled
+    * driver does not implement setFetchSize, hence the explicit FETCH.
+    *
+    * @param file the snapshot file to write
+    * @return the number of orders written
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public int exportOrdersSnapshot(File file) throws SQLException, IOException {
+      // a cursor only lives as long as its transaction
+      UnitOfWork work = beginUnitOfWork();
+      try {
+         _products.load(this);
+         executeUpdate("DECLARE orders_snapshot NO SCROLL CURSOR FOR SELECT o.storeID, o.customerID, o.productID, o.unitsOrdered, o.orderTime, p.pricePerUnit FROM Orders o, Product p WHERE o.storeID = p.storeID AND o.productID = p.productID ORDER BY o.orderTime");
+         OrdersSnapshot.Writer writer = new OrdersSnapshot.Writer();
+         Statement stmt = this._connection.createStatement ();
+         String fetch = String.format("FETCH %d FROM orders_snapshot", SNAPSHOT_FETCH_ROWS);
+         int fetched;
+         do {
+            long start = System.nanoTime ();
+            ResultSet rs = stmt.executeQuery (fetch);
+            fetched = 0;
+            while (rs.next()){
+               writer.add(rs.getInt(1), rs.getInt(2), productName(rs.getString(3)), rs.getInt(4), rs.getTimestamp(5).getTime(), rs.getDouble(6));
+               ++fetched;
+            }//end while
+            rs.close ();
+            trace (QueryTrace.QUERY, fetch, start);
+         } while (fetched == SNAPSHOT_FETCH_ROWS);
+         stmt.close ();
+         executeUpdate("CLOSE orders_snapshot");
+         work.commit();
+         return writer.write(file);
+      }
+      finally {
+         work.rollback();
+      }
+   }//end exportOrdersSnapshot
+
+   /**
+    * Read-only columnar copy of the Orders table. The file holds
+    *
+    *    int magic | int rows | int dictionarySize |
+    *    dictionarySize x (short length | UTF-8 productName) |
+    *    int customerCount | int customerID[customerCount] | padding to 8 |
+    *    int storeID[rows] | int customer[rows] | int productID[rows] |
+    *    int unitsOrdered[rows] | double pricePerUnit[rows] |
+    *    int orderTimeBytes | orderTime as zig-zag varint deltas in ms
+    *
+    * productID indexes the product dictionary and customer the customerID
+    * table, so per-key arrays are as long as the number of distinct keys.
+    * Rows are in orderTime order. The integer columns are memory-mapped and
+    * read in place.
+    */
+   public static class OrdersSnapshot {
+      private static final int MAGIC = 0x414F5332;   // "AOS2"
+
+      public final int rows;
+      public final String[] products;
+      public final int[] customers;
+      public final IntBuffer storeId;
+      // index into customers
+      public final IntBuffer customer;
+      public final IntBuffer productId;
+      public final IntBuffer unitsOrdered;
+      public final DoubleBuffer pricePerUnit;
+      private final ByteBuffer orderTimes;
+
+      private OrdersSnapshot(ByteBuffer data) throws IOException {
+         if (data.getInt() != MAGIC)
+            throw new IOException("Not an orders snapshot");
+         rows = data.getInt();
+         products = new String[data.getInt()];
+         for (int i = 0; i < products.length; ++i){
+            byte[] name = new byte[data.getShort()];
+            data.get(name);
+            products[i] = new String(name, StandardCharsets.UTF_8);
+         }
+         customers = new int[data.getInt()];
+         for (int i = 0; i < customers.length; ++i)
+            customers[i] = data.getInt();
+         data.position((data.position() + 7) & ~7);
+         storeId = column(data, rows * 4).asIntBuffer();
+         customer = column(data, rows * 4).asIntBuffer();
+         productId = column(data, rows * 4).asIntBuffer();
+         unitsOrdered = column(data, rows * 4).asIntBuffer();
+         pricePerUnit = column(data, rows * 8).asDoubleBuffer();
+         orderTimes = column(data, data.getInt());
+      }
+
+      // slices the next length bytes off data
+      private static ByteBuffer column(ByteBuffer data, int length) {
+         ByteBuffer view = data.duplicate();
+         view.limit(data.position() + length);
+         data.position(data.position() + length);
+         return view.slice();
+      }
+
+      /**
+       * Memory-maps a snapshot written by Amazon.exportOrdersSnapshot.
+       *
+       * @param file the snapshot file
+       * @return the mapped snapshot
+       * @throws java.io.IOException when the file cannot be read
+       */
+      public static OrdersSnapshot open(File file) throws IOException {
+         FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         try {
+            return new OrdersSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+         }
+         finally {
+            channel.close();
+         }
+      }
+
+      /**
+       * @return the order times in ms since the epoch, decoded from the deltas
+       */
+      public long[] orderTimes() {
+         long[] times = new long[rows];
+         ByteBuffer in = orderTimes.duplicate();
+         long time = 0;
+         for (int i = 0; i < rows; ++i){
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+               b = in.get();
+               zigzag |= (long) (b & 0x7F) << shift;
+               shift += 7;
+            } while (b < 0);
+            time += (zigzag >>> 1) ^ -(zigzag & 1);
+            times[i] = time;
+         }
+         return times;
+      }
+
+      /**
+       * Accumulates rows in primitive arrays and writes them as a snapshot.
+       */
+      public static class Writer {
+         private final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+         private final Map<Integer, Integer> customers = new LinkedHashMap<Integer, Integer>();
+         private int rows = 0;
+         private int[] storeId = new int[1024];
+         private int[] customer = new int[1024];
+         private int[] productId = new int[1024];
+         private int[] unitsOrdered = new int[1024];
+         private double[] pricePerUnit = new double[1024];
+         private final ByteArrayOutputStream orderTimes = new ByteArrayOutputStream();
+         private long lastTime = 0;
+
+         public void add(int store, int customerId, String productName, int units, long orderTime, double price) {
+            if (rows == storeId.length){
+               storeId = Arrays.copyOf(storeId, rows * 2);
+               customer = Arrays.copyOf(customer, rows * 2);
+               productId = Arrays.copyOf(productId, rows * 2);
+               unitsOrdered = Arrays.copyOf(unitsOrdered, rows * 2);
+               pricePerUnit = Arrays.copyOf(pricePerUnit, rows * 2);
+            }
+            Integer id = dictionary.get(productName);
+            if (id == null){
+               id = dictionary.size();
+               dictionary.put(productName, id);
+            }
+            Integer index = customers.get(customerId);
+            if (index == null){
+               index = customers.size();
+               customers.put(customerId, index);
+            }
+            storeId[rows] = store;
+            customer[rows] = index;
+            productId[rows] = id;
+            unitsOrdered[rows] = units;
+            pricePerUnit[rows] = price;
+            long delta = orderTime - lastTime;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            while ((zigzag & ~0x7FL) != 0){
+               orderTimes.write((int) (zigzag & 0x7F) | 0x80);
+               zigzag >>>= 7;
+            }
+            orderTimes.write((int) zigzag);
+            lastTime = orderTime;
+            ++rows;
+         }
+
+         /**
+          * @param file the file to (over)write
+          * @return the number of rows written
+          * @throws java.io.IOException when the file cannot be written
+          */
+         public int write(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            try {
+               out.writeInt(MAGIC);
+               out.writeInt(rows);
+               out.writeInt(dictionary.size());
+               for (String name : dictionary.keySet()){
+                  byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                  out.writeShort(bytes.length);
+                  out.write(bytes);
+               }
+               out.writeInt(customers.size());
+               for (int customerId : customers.keySet())
+                  out.writeInt(customerId);
+               while (out.size() % 8 != 0)
+                  out.writeByte(0);
+               for (int i = 0; i < rows; ++i) out.writeInt(storeId[i]);
+               for (int i = 0; i < rows; ++i) out.writeInt(customer[i]);
+               for (int i = 0; i < rows; ++i) out.writeInt(productId[i]);
+               for (int i = 0; i < rows; ++i) out.writeInt(unitsOrdered[i]);
+               for (int i = 0; i < rows; ++i) out.writeDouble(pricePerUnit[i]);
+               out.writeInt(orderTimes.size());
+               orderTimes.writeTo(out);
+            }
+            finally {
+               out.close();
+            }
+            return rows;
+         }
+      }//end Writer
+   }//end OrdersSnapshot
+
+   /**
+    * Group-by and top-K aggregations over an OrdersSnapshot, split across
+    * the cores of the machine with fork-join.
+    */
+   public static class OrdersAnalytics {
+      // rows below this are aggregated by a single task
+      private static final int LEAF_ROWS = 1 << 16;
+
+      private final OrdersSnapshot snapshot;
+      private final ForkJoinPool pool;
+
+      public OrdersAnalytics(OrdersSnapshot snapshot, ForkJoinPool pool) {
+         this.snapshot = snapshot;
+         this.pool = pool;
+      }
+
+      /**
+       * Same question as viewPopularProducts, over the whole snapshot.
+       *
+       * @param storeId the store to look at, or -1 for all stores
+       * @param k the number of products to return
+       * @return records of productName, units ordered, revenue by units desc
+       */
+      public List<List<String>> topProducts(int storeId, int k) {
+         SalesTotals totals = pool.invoke(new SalesByProduct(storeId, 0, snapshot.rows));
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (int id : topK(totals.units, k)){
+            List<String> record = new ArrayList<String>();
+            record.add(snapshot.products[id]);
+            record.add(Long.toString(totals.units[id]));
+            record.add(Double.toString(totals.revenue[id]));
+            result.add(record);
+         }
+         return result;
+      }
+
+      /**
+       * Same question as viewPopularCustomers, over the whole snapshot.
+       *
+       * @param storeId the store to look at, or -1 for all stores
+       * @param k the number of customers to return
+       * @return records of customerID, number of orders by orders desc
+       */
+      public List<List<String>> topCustomers(int storeId, int k) {
+         long[] orders = pool.invoke(new OrdersByCustomer(storeId, 0, snapshot.rows));
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (int id : topK(orders, k)){
+            List<String> record = new ArrayList<String>();
+            record.add(Integer.toString(snapshot.customers[id]));
+            record.add(Long.toString(orders[id]));
+            result.add(record);
+         }
+         return result;
+      }
+
+      /**
+       * @return number of orders placed mapped to how many customers placed that many
+       */
+      public SortedMap<Long, Integer> customerOrderFrequency() {
+         long[] orders = pool.invoke(new OrdersByCustomer(-1, 0, snapshot.rows));
+         SortedMap<Long, Integer> histogram = new TreeMap<Long, Integer>();
+         for (int i = 0; i < orders.length; ++i){
+            if (orders[i] == 0)
+               continue;
+            Integer customers = histogram.get(orders[i]);
+            histogram.put(orders[i], customers == null ? 1 : customers + 1);
+         }
+         return histogram;
+      }
+
+      // indexes of the k largest non-zero values, largest first
+      private static List<Integer> topK(final long[] values, int k) {
+         PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(k, 1), new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               return Long.compare(values[a], values[b]);
+            }
+         });
+         for (int i = 0; i < values.length; ++i){
+            if (values[i] == 0)
+               continue;
+            heap.add(i);
+            if (heap.size() > k)
+               heap.poll();
+         }
+         List<Integer> top = new ArrayList<Integer>(heap);
+         Collections.sort(top, Collections.reverseOrder(heap.comparator()));
+         return top;
+      }
+
+      // sums a per-key counter over [from, to), splitting the range until it is small
+      @SuppressWarnings("serial")
+      private abstract class Aggregate<T> extends RecursiveTask<T> {
+         protected final int storeId;
+         protected final int from;
+         protected final int to;
+
+         Aggregate(int storeId, int from, int to) {
+            this.storeId = storeId;
+            this.from = from;
+            this.to = to;
+         }
+         protected boolean selected(int row) {
+            return storeId < 0 || snapshot.storeId.get(row) == storeId;
+         }
+         protected T compute() {
+            if (to - from <= LEAF_ROWS)
+               return leaf();
+            int middle = (from + to) >>> 1;
+            Aggregate<T> left = split(from, middle);
+            left.fork();
+            T right = split(middle, to).compute();
+            return merge(left.join(), right);
+         }
+         abstract T leaf();
+         abstract Aggregate<T> split(int from, int to);
+         abstract T merge(T left, T right);
+      }
+
+      @SuppressWarnings("serial")
+      private abstract class LongAggregate extends Aggregate<long[]> {
+         LongAggregate(int storeId, int from, int to) { super(storeId, from, to); }
+         long[] merge(long[] left, long[] right) {
+            for (int i = 0; i < left.length; ++i)
+               left[i] += right[i];
+            return left;
+         }
+      }
+
+      // units and revenue per productID
+      private static class SalesTotals {
+         final long[] units;
+         final double[] revenue;
+
+         SalesTotals(int products) {
+            units = new long[products];
+            revenue = new double[products];
+         }
+      }
+
+      @SuppressWarnings("serial")
+      private class SalesByProduct extends Aggregate<SalesTotals> {
+         SalesByProduct(int storeId, int from, int to) { super(storeId, from, to); }
+         Aggregate<SalesTotals> split(int from, int to) { return new SalesByProduct(storeId, from, to); }
+         SalesTotals leaf() {
+            SalesTotals totals = new SalesTotals(snapshot.products.length);
+            for (int row = from; row < to; ++row){
+               if (!selected(row))
+                  continue;
+               int product = snapshot.productId.get(row);
+               int units = snapshot.unitsOrdered.get(row);
+               totals.units[product] += units;
+               totals.revenue[product] += units * snapshot.pricePerUnit.get(row);
+            }
+            return totals;
+         }
+         SalesTotals merge(SalesTotals left, SalesTotals right) {
+            for (int i = 0; i < left.units.length; ++i){
+               left.units[i] += right.units[i];
+               left.revenue[i] += right.revenue[i];
+            }
+            return left;
+         }
+      }
+
+      @SuppressWarnings("serial")
+      private class OrdersByCustomer extends LongAggregate {
+         OrdersByCustomer(int storeId, int from, int to) { super(storeId, from, to); }
+         Aggregate<long[]> split(int from, int to) { return new OrdersByCustomer(storeId, from, to); }
+         long[] leaf() {
+            long[] orders = new long[snapshot.customers.length];
+            for (int row = from; row < to; ++row)
+               if (selected(row))
+                  ++orders[snapshot.customer.get(row)];
+            return orders;
+         }
+      }
+   }//end OrdersAnalytics
+
+   /**
+    * Method to return the cross-store product search index, loading it on
+    * first use and reloading it once it is older than
+    * ProductSearchIndex.MAX_AGE_MS so changes made by other sessions show up.
+    *
+    * @return the loaded index
+    * @throws java.sql.SQLException when failed to load the index
+    */
+   public ProductSearchIndex productSearchIndex() throws SQLException {
+      if (this._searchIndex == null)
+         this._searchIndex = new ProductSearchIndex();
+      if (this._searchIndex.isStale())
+         this._searchIndex.load(this);
+      return this._searchIndex;
+   }//end productSearchIndex
+
+   /**
+    * Method to re-read products into the search index after this session
+    * changed them. Does nothing until the index has been used.
+    *
+    * @param storeId the store of the changed products
+    * @param productName the changed product, or null for every product of the store
+    */
+   public void refreshSearchIndex(int storeId, String productName) {
+      if (this._searchIndex == null)
+         return;
+      try{
+         String query = String.format("SELECT storeID, productID, numberOfUnits, pricePerUnit FROM ProductStock WHERE storeID = %d", storeId);
+         if (productName != null)
+            query += String.format(" AND productID = %d", productId(productName));
+         List<List<String>> products = executeQueryAndReturnResult(query + ";");
+         for (int i = 0; i < products.size(); ++i){
+            products.get(i).set(1, productName(products.get(i).get(1)));
+            this._searchIndex.put(products.get(i));
+         }
+      }catch (SQLException e){
+         // a stale entry is corrected by the next reload
+         System.err.println("Search index: " + e.getMessage());
+      }//end try
+   }//end refreshSearchIndex
+
+   /**
+    * In-memory inverted index from lower-cased product names to the stores
+    * carrying them, with their stock and price. Names are kept sorted so a
+    * prefix lookup is a range scan.
+    */
+   public static class ProductSearchIndex {
+      // entries older than this are reloaded from the database
+      public static final long MAX_AGE_MS = 60 * 1000;
+
+      /**
+       * One store carrying a product.
+       */
+      public static class Posting {
+         public final int storeId;
+         public final String productName;
+         public final int numberOfUnits;
+         public final double pricePerUnit;
+         // filled in by search, relative to the user
+         public double distance;
+
+         Posting(int storeId, String productName, int numberOfUnits, double pricePerUnit) {
+            this.storeId = storeId;
+            this.productName = productName;
+            this.numberOfUnits = numberOfUnits;
+            this.pricePerUnit = pricePerUnit;
+         }
+      }//end Posting
+
+      private final ConcurrentSkipListMap<String, Map<Integer, Posting>> postings = new ConcurrentSkipListMap<String, Map<Integer, Posting>>();
+      private final Map<Integer, double[]> stores = new ConcurrentHashMap<Integer, double[]>();
+      private volatile long loadedAt = 0;
+
+      public boolean isStale() {
+         return System.currentTimeMillis() - loadedAt > MAX_AGE_MS;
+      }
+
+      /**
+       * Rebuilds the index from Store and the current stock of every product.
+       *
+       * @param esql the connection to read from
+       * @throws java.sql.SQLException when failed to execute the queries
+       */
+      public synchronized void load(Amazon esql) throws SQLException {
+         List<List<String>> storeCoords = esql.executeQueryAndReturnResult("SELECT storeID, latitude, longitude FROM Store;");
+         _products.load(esql);
+         List<List<String>> products = esql.executeQueryAndReturnResult("SELECT storeID, productID, numberOfUnits, pricePerUnit FROM ProductStock;");
+         for (int i = 0; i < products.size(); ++i)
+            products.get(i).set(1, esql.productName(products.get(i).get(1)));
+         stores.clear();
+         for (int i = 0; i < storeCoords.size(); ++i)
+            stores.put(Integer.parseInt(storeCoords.get(i).get(0)), new double[] { Double.parseDouble(storeCoords.get(i).get(1)), Double.parseDouble(storeCoords.get(i).get(2)) });
+         postings.clear();
+         for (int i = 0; i < products.size(); ++i)
+            put(products.get(i));
+         loadedAt = System.currentTimeMillis();
+      }
+
+      /**
+       * Adds or replaces the posting of a product row.
+       *
+       * @param product storeID, productName, numberOfUnits, pricePerUnit
+       */
+      public void put(List<String> product) {
+         String name = product.get(1).trim();
+         Posting posting = new Posting(Integer.parseInt(product.get(0)), name, Integer.parseInt(product.get(2)), Double.parseDouble(product.get(3)));
+         Map<Integer, Posting> stores = postings.get(key(name));
+         if (stores == null){
+            postings.putIfAbsent(key(name), new ConcurrentHashMap<Integer, Posting>());
+            stores = postings.get(key(name));
+         }
+         stores.put(posting.storeId, posting);
+      }
+
+      /**
+       * Finds the stores carrying products whose name starts with a prefix,
+       * ignoring case, nearest to the given coordinates first.
+       *
+       * @param prefix the start of the product name
+       * @param latitude the latitude of the user
+       * @param longitude the longitude of the user
+       * @param inStockOnly whether to skip stores without units left
+       * @param limit the maximum number of postings returned
+       * @return matching postings with their distance set, ranked by distance
+       */
+      public List<Posting> search(String prefix, double latitude, double longitude, boolean inStockOnly, int limit) {
+         String from = key(prefix);
+         List<Posting> matches = new ArrayList<Posting>();
+         for (Map<Integer, Posting> carriers : postings.subMap(from, true, from + Character.MAX_VALUE, false).values()){
+            for (Posting posting : carriers.values()){
+               double[] store = stores.get(posting.storeId);
+               if (store == null || (inStockOnly && posting.numberOfUnits <= 0))
+                  continue;
+               Posting ranked = new Posting(posting.storeId, posting.productName, posting.numberOfUnits, posting.pricePerUnit);
+               ranked.distance = Math.sqrt((latitude - store[0]) * (latitude - store[0]) + (longitude - store[1]) * (longitude - store[1]));
+               matches.add(ranked);
+            }
+         }
+         Collections.sort(matches, new Comparator<Posting>() {
+            public int compare(Posting a, Posting b) {
+               return Double.compare(a.distance, b.distance);
+            }
+         });
+         return matches.size() > limit ? new ArrayList<Posting>(matches.subList(0, limit)) : matches;
+      }
+
+      private static String key(String name) {
+         return name.trim().toLowerCase();
+      }
+   }//end ProductSearchIndex
+
+   /**
+    * Compact binary record of the statements a process sends to the DBMS,
+    * written when -Damazon.trace=<prefix> is set and re-issued by
+    * replayTrace. Each statement is reduced to its shape, the SQL with every
+    * string and number literal replaced by ?, and its binds, the literals in
+    * order. A shape's text is written once per run and referred to by id
+    * afterwards.
+    *
+    * A file is appended to, never truncated, and holds one run per time a
+    * process opened it:
+    *
+    *    'H' | int magic | long epoch us when the run started |
+    *    records of either
+    *       'S' | int shapeId | string shape
+    *    or
+    *       byte kind | long start us into the run | long session |
+    *       int shapeId | short binds | binds x string | int latency us
+    *
+    * where a string is an int length followed by UTF-8 bytes and each bind
+    * starts with 's' (string literal), 'n' (number) or 'r' (redacted). The
+    * literals of statements on Users (names, passwords, locations) are
+    * never written; they are recorded as redacted and replayed as NULL.
+    * A session is the
+    * process id in the high 32 bits and the connection number within the
+    * process in the low 32, so the traces of concurrent processes can be
+    * merged on their epoch (see read). Statements that fail are not
+    * recorded.
+    */
+   public static class QueryTrace {
+      public static final byte UPDATE = 'U';
+      public static final byte QUERY = 'Q';
+      public static final byte BATCH = 'B';
+      public static final byte BEGIN = 'T';
+      public static final byte COMMIT = 'C';
+      public static final byte ROLLBACK = 'R';
+
+      private static final int MAGIC = 0x41515432;   // "AQT2"
+      // statements whose literals are redacted
+      private static final Pattern USERS = Pattern.compile("\\busers\\b", Pattern.CASE_INSENSITIVE);
+      private static final byte RUN = 'H';
+      private static final byte SHAPE = 'S';
+
+      // the pid of this JVM, or a random id when it does not report one
+      public static final int PROCESS = processId();
+
+      private final DataOutputStream out;
+      private final long origin = System.nanoTime();
+      private final Map<String, Integer> shapes = new HashMap<String, Integer>();
+      private boolean failed = false;
+
+      /**
+       * Starts a run at the end of a trace file, creating it when needed.
+       *
+       * @param file the trace file, one per process
+       * @throws java.io.IOException when the file cannot be opened
+       */
+      public QueryTrace(File file) throws IOException {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+         out.writeByte(RUN);
+         out.writeInt(MAGIC);
+         out.writeLong(System.currentTimeMillis() * 1000);
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               flush();
+            }
+         });
+      }
+
+      /**
+       * Appends one statement. A write error is reported once and turns
+       * tracing off, it never fails the statement.
+       *
+       * @param session the connection number within the process
+       * @param kind UPDATE, QUERY, BATCH, BEGIN, COMMIT or ROLLBACK
+       * @param sql the statement, null for BEGIN, COMMIT and ROLLBACK
+       * @param startNanos System.nanoTime() when the statement was issued
+       * @param latencyNanos how long it took
+       */
+      public synchronized void record(int session, byte kind, String sql, long startNanos, long latencyNanos) {
+         if (failed)
+            return;
+         try {
+            List<String> binds = new ArrayList<String>();
+            String shape = sql == null ? "" : shape(sql, binds);
+            if (USERS.matcher(shape).find())
+               Collections.fill(binds, "r");
+            Integer id = shapes.get(shape);
+            if (id == null){
+               id = shapes.size();
+               shapes.put(shape, id);
+               out.writeByte(SHAPE);
+               out.writeInt(id);
+               writeString(out, shape);
+            }
+            out.writeByte(kind);
+            out.writeLong((startNanos - origin) / 1000);
+            out.writeLong(((long) PROCESS << 32) | (session & 0xffffffffL));
+            out.writeInt(id);
+            out.writeShort(binds.size());
+            for (String bind : binds)
+               writeString(out, bind);
+            out.writeInt((int) Math.min(latencyNanos / 1000, Integer.MAX_VALUE));
+         }catch (IOException e){
+            failed = true;
+            System.err.println("Query trace: " + e.getMessage());
+         }
+      }//end record
+
+      public synchronized void flush() {
+         try {
+            out.flush();
+         }catch (IOException e){
+            // ignored.
+         }
+      }
+
+      /**
+       * One recorded statement.
+       */
+      public static class Entry {
+         public final byte kind;
+         // epoch us
+         public final long startMicros;
+         public final long session;
+         public final String shape;
+         public final List<String> binds;
+         public final long latencyMicros;
+
+         Entry(byte kind, long startMicros, long session, String shape, List<String> binds, long latencyMicros) {
+            this.kind = kind;
+            this.startMicros = startMicros;
+            this.session = session;
+            this.shape = shape;
+            this.binds = binds;
+            this.latencyMicros = latencyMicros;
+         }
+
+         /**
+          * @return the statement with its binds put back
+          */
+         public String sql() {
+            StringBuilder sql = new StringBuilder(shape.length() + 16 * binds.size());
+            int next = 0;
+            for (int i = 0; i < shape.length(); ++i){
+               char c = shape.charAt(i);
+               if (c != '?' || next >= binds.size()){
+                  sql.append(c);
+                  continue;
+               }
+               String bind = binds.get(next++);
+               if (bind.charAt(0) == 'r')
+                  sql.append("NULL");
+               else if (bind.charAt(0) == 'n')
+                  sql.append(bind, 1, bind.length());
+               else
+                  sql.append('\'').append(bind.substring(1).replace("'", "''")).append('\'');
+            }
+            return sql.toString();
+         }
+      }//end Entry
+
+      /**
+       * @param files traces written by QueryTrace, typically one per process
+       * @return the statements of every run of every file, by start time
+       * @throws java.io.IOException when a file is not a readable trace
+       */
+      public static List<Entry> read(List<File> files) throws IOException {
+         List<Entry> entries = new ArrayList<Entry>();
+         for (File file : files)
+            entries.addAll(read(file));
+         Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry x, Entry y) {
+               return Long.compare(x.startMicros, y.startMicros);
+            }
+         });
+         return entries;
+      }//end read
+
+      /**
+       * @param file a trace written by QueryTrace
+       * @return its statements in the order they were recorded
+       * @throws java.io.IOException when the file is not a readable trace
+       */
+      public static List<Entry> read(File file) throws IOException {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+         try {
+            Map<Integer, String> shapes = new HashMap<Integer, String>();
+            List<Entry> entries = new ArrayList<Entry>();
+            long epoch = -1;
+            while (true) {
+               int kind = in.read();
+               if (kind < 0)
+                  break;
+               if (epoch < 0 && kind != RUN)
+                  throw new IOException("Not a query trace: " + file);
+               try {
+                  if (kind == RUN){
+                     if (in.readInt() != MAGIC)
+                        throw new IOException("Not a query trace: " + file);
+                     epoch = in.readLong();
+                     shapes.clear();
+                     continue;
+                  }
+                  if (kind == SHAPE){
+                     int id = in.readInt();
+                     shapes.put(id, readString(in));
+                     continue;
+                  }
+                  long start = epoch + in.readLong();
+                  long session = in.readLong();
+                  String shape = shapes.get(in.readInt());
+                  int count = in.readShort();
+                  List<String> binds = new ArrayList<String>(count);
+                  for (int i = 0; i < count; ++i)
+                     binds.add(readString(in));
+                  entries.add(new Entry((byte) kind, start, session, shape, binds, in.readInt()));
+               }catch (EOFException e){
+                  break;   // the process stopped in the middle of a record
+               }
+            }
+            return entries;
+         }
+         finally {
+            in.close();
+         }
+      }//end read
+
+      // replaces string and number literals by ? and collects them in binds
+      static String shape(String sql, List<String> binds) {
+         StringBuilder shape = new StringBuilder(sql.length());
+         int n = sql.length();
+         int i = 0;
+         while (i < n){
+            char c = sql.charAt(i);
+            if (c == '\''){
+               StringBuilder literal = new StringBuilder();
+               int j = i + 1;
+               while (j < n){
+                  if (sql.charAt(j) == '\''){
+                     if (j + 1 < n && sql.charAt(j + 1) == '\''){
+                        literal.append('\'');
+                        j += 2;
+                        continue;
+                     }
+                     break;
+                  }
+                  literal.append(sql.charAt(j++));
+               }
+               binds.add("s" + literal);
+               shape.append('?');
+               i = j + 1;
+            }
+            else if (Character.isDigit(c) && (i == 0 || !isIdentifier(sql.charAt(i - 1)))){
+               int j = i;
+               while (j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.'))
+                  ++j;
+               if (j < n && isIdentifier(sql.charAt(j))){
+                  shape.append(sql, i, j);
+               }
+               else {
+                  binds.add("n" + sql.substring(i, j));
+                  shape.append('?');
+               }
+               i = j;
+            }
+            else {
+               shape.append(c);
+               ++i;
+            }
+         }
+         return shape.toString();
+      }//end shape
+
+      private static int processId() {
+         String name = ManagementFactory.getRuntimeMXBean().getName();
+         try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+         }catch (RuntimeException e){
+            return new Random().nextInt() & Integer.MAX_VALUE;
+         }
+      }
+
+      private static boolean isIdentifier(char c) {
+         return Character.isLetterOrDigit(c) || c == '_';
+      }
+
+      private static void writeString(DataOutputStream out, String value) throws IOException {
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+
+      private static String readString(DataInputStream in) throws IOException {
+         byte[] bytes = new byte[in.readInt()];
+         in.readFully(bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
+      }
+   }//end QueryTrace
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (_trace != null)
+         _trace.flush();
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -233,20 +2159,80 @@ public class Amazon {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length >= 2 && args[0].equals("--tail-journal")) {
+         tailJournal(new File(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 0L);
+         return;
+      }//end if
+      if (args.length >= 4 && args[0].equals("--compare")) {
+         try{
+            // --compare <before trace>... --against <after trace>...
+            List<File> before = new ArrayList<File>();
+            List<File> after = new ArrayList<File>();
+            List<File> side = before;
+            for (int i = 1; i < args.length; ++i){
+               if (args[i].equals("--against"))
+                  side = after;
+               else
+                  side.add(new File(args[i]));
+            }
+            if (before.size() == 0 || after.size() == 0)
+               throw new IllegalArgumentException("Usage: --compare <trace>... --against <trace>...");
+            compareTraces(before, after);
+         }catch(Exception e) {
+            System.err.println (e.getMessage ());
+         }
+         return;
+      }//end if
+      if (args.length >= 2 && args[0].equals("--analyze")) {
+         analyzeSnapshot(new File(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 5);
+         return;
+      }//end if
+      boolean batch = args.length >= 5 && args[3].equals("--batch");
+      boolean replay = args.length >= 5 && args[3].equals("--replay");
+      if (args.length != 3 && !batch && !replay) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Amazon.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--batch <script> [--threads <n>] | --replay <trace>... [--speed <n>]]");
+         return;
+      }//end if
+      try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+         return;
+      }//end try
+      if (replay) {
+         try{
+            List<File> traces = new ArrayList<File>();
+            double speed = 1.0;
+            for (int i = 4; i < args.length; ++i){
+               if (args[i].equals("--speed") && i + 1 < args.length)
+                  speed = Double.parseDouble(args[++i]);
+               else
+                  traces.add(new File(args[i]));
+            }
+            replayTrace(args[0], args[1], args[2], traces, speed);
+         }catch(Exception e) {
+            System.err.println (e.getMessage ());
+         }
+         return;
+      }//end if
+      if (batch) {
+         try{
+            int threads = args.length >= 7 && args[5].equals("--threads") ? Integer.parseInt(args[6]) : 1;
+            runBatch(args[0], args[1], args[2], new File(args[4]), Math.max(threads, 1));
+         }catch(Exception e) {
+            System.err.println (e.getMessage ());
+         }
          return;
       }//end if
 
       Greeting();
       Amazon esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
          // instantiate the Amazon object and creates a physical
          // connection.
          String dbname = args[0];
@@ -278,6 +2264,7 @@ public class Amazon {
                 System.out.println("2. View Product List");
                 System.out.println("3. Place a Order");
                 System.out.println("4. View 5 recent orders");
+                System.out.println("18. Search Products Across Stores");
 
                 //the following functionalities basically used by managers
                 System.out.println("5. Manager Update Product");
@@ -286,33 +2273,29 @@ public class Amazon {
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
                 System.out.println("10. View All Orders");
+                System.out.println("19. Place Batch Product Supply Request");
+                System.out.println("16. View Sales Report");
 
                 //the following functionalities basically used by admins
                 System.out.println("11. View all users");
                 System.out.println("12. Update user");
                 System.out.println("13. Admin Update Product");
+                System.out.println("14. Manager Reprice Store");
+                System.out.println("15. Admin Compact Stock Counters and Sales Rollups");
+                System.out.println("17. Admin Export Orders Snapshot");
+                System.out.println("21. Admin Plan Warehouse Restock");
 
 
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewStores(esql,authorisedUser); break;
-                   case 2: viewProducts(esql); break;
-                   case 3: placeOrder(esql,authorisedUser); break;
-                   case 4: viewRecentOrders(esql,authorisedUser); break;
-                   case 5: managerUpdateProduct(esql, authorisedUser); break;
-                   case 6: viewRecentUpdates(esql,authorisedUser); break;
-                   case 7: viewPopularProducts(esql,authorisedUser); break;
-                   case 8: viewPopularCustomers(esql, authorisedUser); break;
-                   case 9: placeProductSupplyRequests(esql, authorisedUser); break;
-                   case 10: viewAllOrders(esql, authorisedUser); break;
-                   case 11: viewAllUsers(esql, authorisedUser); break;
-                   case 12: updateUser(esql, authorisedUser); break;
-                   case 13: adminUpdateProduct(esql, authorisedUser); break;
-
+                int choice = readChoice();
+                switch (choice){
                    case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                   default :
+                      if (!runUserOperation(esql, authorisedUser, choice))
+                         System.out.println("Unrecognized choice!");
+                      break;
                 }
               }
             }
@@ -333,6 +2316,467 @@ public class Amazon {
       }//end try
    }//end main
 
+   // menu number of each user operation, as accepted by runUserOperation
+   static final String[] OPERATIONS = {
+      null, "viewStores", "viewProducts", "placeOrder", "viewRecentOrders",
+      "managerUpdateProduct", "viewRecentUpdates", "viewPopularProducts", "viewPopularCustomers",
+      "placeProductSupplyRequests", "viewAllOrders", "viewAllUsers", "updateUser",
+      "adminUpdateProduct", "managerRepriceStore", "compactStockCounters", "viewSalesReport",
+      "exportOrdersSnapshot", "searchProducts", "placeBatchProductSupplyRequests", null,
+      "planWarehouseRestock"
+   };
+
+   /*
+    * Runs one operation of the user menu
+    * @return false if the choice is not an operation
+    **/
+   public static boolean runUserOperation(Amazon esql, String authorisedUser, int choice) {
+      switch (choice){
+         case 1: viewStores(esql,authorisedUser); break;
+         case 2: viewProducts(esql); break;
+         case 3: placeOrder(esql,authorisedUser); break;
+         case 4: viewRecentOrders(esql,authorisedUser); break;
+         case 5: managerUpdateProduct(esql, authorisedUser); break;
+         case 6: viewRecentUpdates(esql,authorisedUser); break;
+         case 7: viewPopularProducts(esql,authorisedUser); break;
+         case 8: viewPopularCustomers(esql, authorisedUser); break;
+         case 9: placeProductSupplyRequests(esql, authorisedUser); break;
+         case 10: viewAllOrders(esql, authorisedUser); break;
+         case 11: viewAllUsers(esql, authorisedUser); break;
+         case 12: updateUser(esql, authorisedUser); break;
+         case 13: adminUpdateProduct(esql, authorisedUser); break;
+         case 14: managerRepriceStore(esql, authorisedUser); break;
+         case 15: compactStockCounters(esql, authorisedUser); break;
+         case 16: viewSalesReport(esql, authorisedUser); break;
+         case 17: exportOrdersSnapshot(esql, authorisedUser); break;
+         case 18: searchProducts(esql, authorisedUser); break;
+         case 19: placeBatchProductSupplyRequests(esql, authorisedUser); break;
+         case 21: planWarehouseRestock(esql, authorisedUser); break;
+         default : return false;
+      }
+      return true;
+   }//end runUserOperation
+
+   /*
+    * Runs the commands of a script file, one per line:
+    *
+    *    <userID> <operation> <answer> <answer> ...
+    *
+    * The operation is a user menu number or name (e.g. 3 or placeOrder) and
+    * the answers are what its prompts would read, in order. Answers with
+    * blanks are written in double quotes, "" is an empty answer. Blank
+    * lines and lines starting with # are skipped. Commands are spread over
+    * a pool of workers, each with its own connection. A command's output
+    * is printed, in script order, as soon as every command before it has
+    * finished; per-operation timings follow at the end.
+    **/
+   public static void runBatch(final String dbname, final String dbport, final String user, File script, int threads) throws Exception {
+      final List<String> commands = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new FileReader(script));
+      try {
+         for (String line = reader.readLine(); line != null; line = reader.readLine())
+            if (line.trim().length() > 0 && !line.trim().startsWith("#"))
+               commands.add(line);
+      }
+      finally {
+         reader.close();
+      }
+
+      final byte[][] outputs = new byte[commands.size()][];
+      final String[] operations = new String[commands.size()];
+      final long[] nanos = new long[commands.size()];
+      final AtomicInteger next = new AtomicInteger();
+      final AtomicInteger unconnected = new AtomicInteger();
+      // the first command whose output is not printed yet
+      final int[] printed = {0};
+      final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+
+      PrintStream console = System.out;
+      PrintStream errors = System.err;
+      System.setOut(new PrintStream(new CommandOutput(console), true));
+      System.setErr(new PrintStream(new CommandOutput(errors), true));
+      long start = System.nanoTime();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+         for (int t = 0; t < threads; ++t){
+            workers.add(new Callable<Void>() {
+               public Void call() throws Exception {
+                  Amazon esql;
+                  try {
+                     esql = new Amazon(dbname, dbport, user, "");
+                  }catch (SQLException e){
+                     // the workers that did connect run the remaining commands
+                     unconnected.incrementAndGet();
+                     return null;
+                  }
+                  try {
+                     for (int i = next.getAndIncrement(); i < commands.size(); i = next.getAndIncrement()){
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        CommandOutput.buffer.set(output);
+                        long begin = System.nanoTime();
+                        try {
+                           operations[i] = runCommand(esql, commands.get(i));
+                        }catch (Exception e){
+                           operations[i] = "invalid";
+                           System.err.println("❌ " + e.getMessage());
+                        }finally{
+                           nanos[i] = System.nanoTime() - begin;
+                           CommandOutput.buffer.remove();
+                           scripted.remove();
+                        }
+                        synchronized (outputs) {
+                           outputs[i] = output.toByteArray();
+                           printFinished(out, commands, outputs, printed);
+                        }
+                     }
+                  }
+                  finally {
+                     esql.cleanup();
+                  }
+                  return null;
+               }
+            });
+         }
+         for (Future<Void> worker : pool.invokeAll(workers))
+            worker.get();
+      }
+      finally {
+         pool.shutdown();
+         System.setOut(console);
+         System.setErr(errors);
+      }
+      long elapsed = System.nanoTime() - start;
+
+      for (int i = printed[0]; i < commands.size(); ++i){
+         out.println("> " + commands.get(i));
+         out.println("❌ Not run, no worker could connect to the database");
+      }
+      printBatchSummary(out, operations, nanos, elapsed, threads);
+      if (unconnected.get() > 0)
+         out.println(String.format("❌ %d of %d workers could not connect to the database", unconnected.get(), threads));
+      out.flush();
+   }//end runBatch
+
+   // prints the finished commands that follow the last printed one and drops
+   // their output; the caller holds the lock on outputs
+   private static void printFinished(PrintStream out, List<String> commands, byte[][] outputs, int[] printed) {
+      int i = printed[0];
+      for (; i < commands.size() && outputs[i] != null; ++i){
+         out.println("> " + commands.get(i));
+         out.write(outputs[i], 0, outputs[i].length);
+         outputs[i] = null;
+      }
+      if (i > printed[0])
+         out.flush();
+      printed[0] = i;
+   }
+
+   // runs one script line, returns the name of the operation
+   static String runCommand(Amazon esql, String command) throws IOException {
+      List<String> tokens = tokenizeCommand(command);
+      if (tokens.size() < 2)
+         throw new IOException("expected <userID> <operation> ... but got: " + command);
+      int choice = -1;
+      for (int i = 1; i < OPERATIONS.length; ++i)
+         if (tokens.get(1).equalsIgnoreCase(OPERATIONS[i]) || tokens.get(1).equals(Integer.toString(i)))
+            choice = i;
+      if (choice < 0 || OPERATIONS[choice] == null)
+         throw new IOException("Unrecognized operation " + tokens.get(1));
+
+      StringBuilder answers = new StringBuilder();
+      for (int i = 2; i < tokens.size(); ++i)
+         answers.append(tokens.get(i)).append('\n');
+      scripted.set(new BufferedReader(new StringReader(answers.toString())));
+      runUserOperation(esql, tokens.get(0), choice);
+      return OPERATIONS[choice];
+   }//end runCommand
+
+   // splits on blanks, keeping "double quoted" answers together
+   static List<String> tokenizeCommand(String command) {
+      List<String> tokens = new ArrayList<String>();
+      int i = 0;
+      while (i < command.length()){
+         char c = command.charAt(i);
+         if (Character.isWhitespace(c)){
+            ++i;
+         }
+         else if (c == '"'){
+            int end = command.indexOf('"', i + 1);
+            if (end < 0)
+               end = command.length();
+            tokens.add(command.substring(i + 1, end));
+            i = end + 1;
+         }
+         else {
+            int end = i;
+            while (end < command.length() && !Character.isWhitespace(command.charAt(end)))
+               ++end;
+            tokens.add(command.substring(i, end));
+            i = end;
+         }
+      }
+      return tokens;
+   }//end tokenizeCommand
+
+   // count, mean, median, 95th percentile and max latency per operation
+   static void printBatchSummary(PrintStream out, String[] operations, long[] nanos, long elapsed, int threads) {
+      Map<String, List<Long>> byOperation = new TreeMap<String, List<Long>>();
+      for (int i = 0; i < operations.length; ++i){
+         String operation = operations[i] == null ? "not run" : operations[i];
+         if (!byOperation.containsKey(operation))
+            byOperation.put(operation, new ArrayList<Long>());
+         byOperation.get(operation).add(nanos[i]);
+      }
+      out.println("*******************************************************");
+      out.println(String.format("%d commands on %d workers in %.1f ms (%.1f commands/s)", operations.length, threads, elapsed / 1e6, operations.length / (elapsed / 1e9)));
+      out.println(String.format("%-32s %7s %10s %10s %10s %10s", "operation", "count", "mean ms", "p50 ms", "p95 ms", "max ms"));
+      for (Map.Entry<String, List<Long>> entry : byOperation.entrySet()){
+         List<Long> times = entry.getValue();
+         Collections.sort(times);
+         long total = 0;
+         for (long time : times)
+            total += time;
+         out.println(String.format("%-32s %7d %10.2f %10.2f %10.2f %10.2f", entry.getKey(), times.size(), total / 1e6 / times.size(),
+            times.get((times.size() - 1) / 2) / 1e6, times.get((int) Math.ceil(times.size() * 0.95) - 1) / 1e6, times.get(times.size() - 1) / 1e6));
+      }
+   }//end printBatchSummary
+
+   /**
+    * Stands in for System.out and System.err in batch mode. A worker thread
+    * running a command writes into that command's buffer, anything else
+    * goes to the real stream.
+    */
+   static class CommandOutput extends OutputStream {
+      static final ThreadLocal<ByteArrayOutputStream> buffer = new ThreadLocal<ByteArrayOutputStream>();
+      private final OutputStream fallback;
+
+      CommandOutput(OutputStream fallback) {
+         this.fallback = fallback;
+      }
+      public void write(int b) throws IOException {
+         ByteArrayOutputStream target = buffer.get();
+         if (target != null)
+            target.write(b);
+         else
+            fallback.write(b);
+      }
+      public void write(byte[] b, int off, int len) throws IOException {
+         ByteArrayOutputStream target = buffer.get();
+         if (target != null)
+            target.write(b, off, len);
+         else
+            fallback.write(b, off, len);
+      }
+      public void flush() throws IOException {
+         if (buffer.get() == null)
+            fallback.flush();
+      }
+   }//end CommandOutput
+
+   /*
+    * Re-issues recorded traces, merged on their start times: one connection
+    * per recorded session of every process, each statement sent at its
+    * recorded offset divided by speed (0 sends them as fast as possible).
+    * Prints recorded against replayed latencies.
+    **/
+   public static void replayTrace(final String dbname, final String dbport, final String user, List<File> traceFiles, final double speed) throws Exception {
+      final List<QueryTrace.Entry> entries = QueryTrace.read(traceFiles);
+      if (entries.size() == 0){
+         System.out.println("❌ Empty trace");
+         return;
+      }
+      final Map<Long, List<Integer>> sessions = new LinkedHashMap<Long, List<Integer>>();
+      for (int i = 0; i < entries.size(); ++i){
+         if (!sessions.containsKey(entries.get(i).session))
+            sessions.put(entries.get(i).session, new ArrayList<Integer>());
+         sessions.get(entries.get(i).session).add(i);
+      }
+
+      final long[] replayed = new long[entries.size()];
+      final AtomicInteger failures = new AtomicInteger();
+      final long first = entries.get(0).startMicros;
+      final long begin = System.nanoTime();
+      ExecutorService pool = Executors.newFixedThreadPool(sessions.size());
+      try {
+         List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+         for (final List<Integer> session : sessions.values()){
+            workers.add(new Callable<Void>() {
+               public Void call() throws Exception {
+                  Amazon esql = new Amazon(dbname, dbport, user, "");
+                  UnitOfWork work = null;
+                  try {
+                     for (int i : session){
+                        QueryTrace.Entry entry = entries.get(i);
+                        if (speed > 0){
+                           long wait = begin + (long) ((entry.startMicros - first) * 1000 / speed) - System.nanoTime();
+                           if (wait > 0)
+                              Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        }
+                        long start = System.nanoTime();
+                        try {
+                           switch (entry.kind){
+                              case QueryTrace.UPDATE: esql.executeUpdate(entry.sql()); break;
+                              case QueryTrace.QUERY: esql.executeQuery(entry.sql()); break;
+                              case QueryTrace.BEGIN: work = esql.beginUnitOfWork(); break;
+                              case QueryTrace.BATCH:
+                                 if (work != null) work.addBatch(entry.sql());
+                                 else esql.executeUpdate(entry.sql());
+                                 break;
+                              case QueryTrace.COMMIT: if (work != null) work.commit(); work = null; break;
+                              case QueryTrace.ROLLBACK: if (work != null) work.rollback(); work = null; break;
+                           }
+                        }catch (SQLException e){
+                           failures.incrementAndGet();
+                           if (work != null) work.rollback();
+                           work = null;
+                        }
+                        replayed[i] = (System.nanoTime() - start) / 1000;
+                     }
+                  }
+                  finally {
+                     if (work != null) work.rollback();
+                     esql.cleanup();
+                  }
+                  return null;
+               }
+            });
+         }
+         for (Future<Void> worker : pool.invokeAll(workers))
+            worker.get();
+      }
+      finally {
+         pool.shutdown();
+      }
+      System.out.println(String.format("Replayed %d statements over %d sessions in %.1f ms, %d failed", entries.size(), sessions.size(), (System.nanoTime() - begin) / 1e6, failures.get()));
+
+      long[] recorded = new long[entries.size()];
+      for (int i = 0; i < entries.size(); ++i)
+         recorded[i] = entries.get(i).latencyMicros;
+      printLatencyComparison("recorded", entries, recorded, "replayed", entries, replayed);
+   }//end replayTrace
+
+   /*
+    * Prints the latency distributions of two recorded runs side by side,
+    * each given as the traces of all its processes
+    **/
+   public static void compareTraces(List<File> before, List<File> after) throws IOException {
+      List<QueryTrace.Entry> a = QueryTrace.read(before);
+      List<QueryTrace.Entry> b = QueryTrace.read(after);
+      long[] la = new long[a.size()];
+      for (int i = 0; i < a.size(); ++i)
+         la[i] = a.get(i).latencyMicros;
+      long[] lb = new long[b.size()];
+      for (int i = 0; i < b.size(); ++i)
+         lb[i] = b.get(i).latencyMicros;
+      printLatencyComparison("before", a, la, "after", b, lb);
+   }//end compareTraces
+
+   // p50/p95/p99 in ms of all statements and of the 10 shapes with the most total time in the first run
+   static void printLatencyComparison(String nameA, List<QueryTrace.Entry> a, long[] latenciesA, String nameB, List<QueryTrace.Entry> b, long[] latenciesB) {
+      Map<String, List<Long>> byShapeA = latenciesByShape(a, latenciesA);
+      Map<String, List<Long>> byShapeB = latenciesByShape(b, latenciesB);
+      final Map<String, Long> totals = new HashMap<String, Long>();
+      for (Map.Entry<String, List<Long>> shape : byShapeA.entrySet()){
+         long total = 0;
+         for (long latency : shape.getValue())
+            total += latency;
+         totals.put(shape.getKey(), total);
+      }
+      List<String> shapes = new ArrayList<String>(totals.keySet());
+      shapes.remove("(all statements)");
+      Collections.sort(shapes, new Comparator<String>() {
+         public int compare(String x, String y) {
+            return Long.compare(totals.get(y), totals.get(x));
+         }
+      });
+      shapes.add(0, "(all statements)");
+
+      System.out.println(String.format("%-60s %8s %22s %22s %22s", "", "count", "p50 ms", "p95 ms", "p99 ms"));
+      System.out.println(String.format("%-60s %8s %22s %22s %22s", "", "", nameA + " / " + nameB, nameA + " / " + nameB, nameA + " / " + nameB));
+      for (int i = 0; i < shapes.size() && i <= 10; ++i){
+         String shape = shapes.get(i);
+         List<Long> x = byShapeA.get(shape);
+         List<Long> y = byShapeB.containsKey(shape) ? byShapeB.get(shape) : new ArrayList<Long>();
+         String label = shape.length() > 60 ? shape.substring(0, 57) + "..." : shape;
+         System.out.println(String.format("%-60s %8d %22s %22s %22s", label, x.size(),
+            percentile(x, 0.50) + " / " + percentile(y, 0.50),
+            percentile(x, 0.95) + " / " + percentile(y, 0.95),
+            percentile(x, 0.99) + " / " + percentile(y, 0.99)));
+      }
+   }//end printLatencyComparison
+
+   // latencies of the statements that do work, sorted, per shape and overall
+   private static Map<String, List<Long>> latenciesByShape(List<QueryTrace.Entry> entries, long[] latencies) {
+      Map<String, List<Long>> byShape = new HashMap<String, List<Long>>();
+      byShape.put("(all statements)", new ArrayList<Long>());
+      for (int i = 0; i < entries.size(); ++i){
+         QueryTrace.Entry entry = entries.get(i);
+         // queued batch statements and BEGIN take no time on their own
+         if (entry.kind == QueryTrace.BATCH || entry.kind == QueryTrace.BEGIN)
+            continue;
+         String shape = entry.kind == QueryTrace.COMMIT ? "COMMIT" : entry.kind == QueryTrace.ROLLBACK ? "ROLLBACK" : entry.shape;
+         if (!byShape.containsKey(shape))
+            byShape.put(shape, new ArrayList<Long>());
+         byShape.get(shape).add(latencies[i]);
+         byShape.get("(all statements)").add(latencies[i]);
+      }
+      for (List<Long> values : byShape.values())
+         Collections.sort(values);
+      return byShape;
+   }
+
+   private static String percentile(List<Long> sorted, double p) {
+      if (sorted.size() == 0)
+         return "-";
+      long micros = sorted.get((int) Math.ceil(sorted.size() * p) - 1);
+      return String.format("%.2f", micros / 1000.0);
+   }
+
+   /*
+    * Prints the events of a journal from a position on, waiting for new ones
+    **/
+   public static void tailJournal(File dir, long position) {
+      try{
+         EventJournal.Tailer tailer = new EventJournal.Tailer(dir, position);
+         while (true) {
+            EventJournal.Event event = tailer.next();
+            if (event == null){
+               Thread.sleep(100);
+               continue;
+            }
+            System.out.println(event + " (resume from " + tailer.position() + ")");
+         }
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end tailJournal
+
+   /*
+    * Prints the all-store aggregations of an orders snapshot, no database needed
+    **/
+   public static void analyzeSnapshot(File file, int k) {
+      try{
+         long start = System.nanoTime();
+         OrdersAnalytics analytics = new OrdersAnalytics(OrdersSnapshot.open(file), ForkJoinPool.commonPool());
+         List<List<String>> products = analytics.topProducts(-1, k);
+         List<List<String>> customers = analytics.topCustomers(-1, k);
+         SortedMap<Long, Integer> frequency = analytics.customerOrderFrequency();
+         System.out.println("Top " + k + " products across all stores:");
+         for (int i = 0; i < products.size(); ++i)
+            System.out.println(String.format(i+1 + ": " + "Product Name: %s Units ordered: %s Revenue: %s", products.get(i).get(0), products.get(i).get(1), products.get(i).get(2)));
+         System.out.println("Top " + k + " customers across all stores:");
+         for (int i = 0; i < customers.size(); ++i)
+            System.out.println(String.format(i+1 + ": " + "Customer ID: %s Number of orders: %s", customers.get(i).get(0), customers.get(i).get(1)));
+         System.out.println("Customer order frequency:");
+         for (Map.Entry<Long, Integer> entry : frequency.entrySet())
+            System.out.println(entry.getKey() + " orders: " + entry.getValue() + " customers");
+         System.out.println(String.format("Done in %.1f ms", (System.nanoTime() - start) / 1e6));
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end analyzeSnapshot
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -340,6 +2784,46 @@ public class Amazon {
          "*******************************************************\n");
    }//end Greeting
 
+   /*
+    * The reader prompts are answered from: the keyboard, or the answers of
+    * the batch command the current thread is running
+    **/
+   public static BufferedReader input() {
+      BufferedReader answers = scripted.get();
+      return answers != null ? answers : in;
+   }//end input
+
+   /*
+    * Reads one answer. A batch command that runs out of answers or gives an
+    * invalid one fails instead of asking again.
+    **/
+   static String readAnswer() throws IOException {
+      String answer = input().readLine();
+      if (answer == null && scripted.get() != null)
+         throw new IllegalArgumentException("Missing answer in batch command");
+      return answer;
+   }//end readAnswer
+
+   // the line printed above and below a listing
+   static final String BANNER = "⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️";
+
+   /*
+    * Prints the prompt for the next answer. Batch scripts supply the answers
+    * up front, so there it is skipped like "Please make your choice".
+    **/
+   public static void prompt(String text) {
+      if (scripted.get() == null)
+         System.out.println(text);
+   }
+
+   /*
+    * Prints the line framing a listing, skipped in batch mode
+    **/
+   public static void banner() {
+      if (scripted.get() == null)
+         System.out.println(BANNER);
+   }
+
    /*
     * Reads the users choice given from the keyboard
     * @int
@@ -348,11 +2832,16 @@ public class Amazon {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
+         if (scripted.get() == null)
+            System.out.print("Please make your choice: ");
+         String answer = null;
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            answer = readAnswer();
+            input = Integer.parseInt(answer.trim());
             break;
          }catch (Exception e) {
+            if (scripted.get() != null)
+               throw new IllegalArgumentException(answer == null ? "Missing answer in batch command" : "Your input is invalid: " + answer);
             System.out.println("Your input is invalid!");
             continue;
          }//end try
@@ -363,11 +2852,12 @@ public class Amazon {
       String input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
+         if (scripted.get() == null)
+            System.out.print("Please make your choice: ");
          try { // read the integer, parse it and break.
-            input = in.readLine();
+            input = readAnswer();
             break;
-         }catch (Exception e) {
+         }catch (IOException e) {
             System.out.println("Your input is invalid!");
             continue;
          }//end try
@@ -381,13 +2871,13 @@ public class Amazon {
    public static void CreateUser(Amazon esql){
       try{
          System.out.print("\tEnter name: ");
-         String name = in.readLine();
+         String name = readAnswer();
          System.out.print("\tEnter password: ");
-         String password = in.readLine();
+         String password = readAnswer();
          System.out.print("\tEnter latitude: ");   
-         String latitude = in.readLine();       //enter lat value between [0.0, 100.0]
+         String latitude = readAnswer();       //enter lat value between [0.0, 100.0]
          System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
-         String longitude = in.readLine();
+         String longitude = readAnswer();
          
          String type="Customer";
 
@@ -408,9 +2898,9 @@ public class Amazon {
    public static String LogIn(Amazon esql){
       try{
          System.out.print("\tEnter name: ");
-         String name = in.readLine();
+         String name = readAnswer();
          System.out.print("\tEnter password: ");
-         String password = in.readLine();
+         String password = readAnswer();
 
          String query = String.format("SELECT userID FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
          List<List<String>> userId = esql.executeQueryAndReturnResult(query);
@@ -453,18 +2943,18 @@ public class Amazon {
    }
    public static void viewProducts(Amazon esql) {
       try {
-         System.out.println("Enter the storeID of a store to view its products");
+         prompt("Enter the storeID of a store to view its products");
          int storeId = readChoice();
-         List<List<String>> storeProducts = esql.executeQueryAndReturnResult(String.format("SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d;", storeId));
+         List<List<String>> storeProducts = esql.executeQueryAndReturnResult(String.format("SELECT productID, numberOfUnits, pricePerUnit FROM ProductStock WHERE storeID = %d;", storeId));
          if (storeProducts.size() == 0){
             System.out.println("❌ No products found for storeID " + storeId);
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i < storeProducts.size(); ++i)
          {
-            System.out.println("Product Name: " + storeProducts.get(i).get(0) + " Number of Units: " + storeProducts.get(i).get(1) + " Price per Unit: " + storeProducts.get(i).get(2));
+            System.out.println("Product Name: " + esql.productName(storeProducts.get(i).get(0)) + " Number of Units: " + storeProducts.get(i).get(1) + " Price per Unit: " + storeProducts.get(i).get(2));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
@@ -472,7 +2962,7 @@ public class Amazon {
    }
    public static void placeOrder(Amazon esql, String authorisedUser) {
       try {
-         System.out.println("Enter the storeID of a store to order a product from");
+         prompt("Enter the storeID of a store to order a product from");
          int storeId = readChoice();
 
 
@@ -494,18 +2984,19 @@ public class Amazon {
             return;
          }
 
-         System.out.println("Enter the product name of a product to order");
+         prompt("Enter the product name of a product to order");
          String productName = readStringChoice();
 
          // check if product is in store
-         List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Product WHERE storeID = %d AND productName = '%s';", storeId, productName));
+         int productId = esql.productId(productName);
+         List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT * FROM ProductStock WHERE storeID = %d AND productID = %d;", storeId, productId));
          if (productInfo.size() == 0){
             System.out.println("❌ Product " + productName + " does not exist in storeID " + storeId);
             return;
          }
 
 
-         System.out.println("Enter the number of units to order");
+         prompt("Enter the number of units to order");
          int numberOfUnits = readChoice();
          // check if there are enough units in store
           if (numberOfUnits > Integer.parseInt(productInfo.get(0).get(2))){
@@ -516,8 +3007,10 @@ public class Amazon {
 
 
          // update order table
-         String query = String.format("INSERT INTO Orders (customerId, storeID, productName, unitsOrdered, orderTime) VALUES ('%s', %d, '%s', %d, CURRENT_TIMESTAMP)", authorisedUser, storeId, productName, numberOfUnits);
+         String query = String.format("INSERT INTO Orders (customerId, storeID, productID, unitsOrdered, orderTime) VALUES ('%s', %d, %d, %d, CURRENT_TIMESTAMP)", authorisedUser, storeId, productId, numberOfUnits);
          esql.executeUpdate(query);
+         esql.journal(EventJournal.ORDER_PLACED, authorisedUser, storeId, productName, numberOfUnits, -1);
+         esql.refreshSearchIndex(storeId, productName);
 
          // update product table
          // query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - %d WHERE storeID = %d AND productName = '%s'", numberOfUnits, storeId, productName);
@@ -530,19 +3023,43 @@ public class Amazon {
       System.out.println("✅ Order Placed");
 
    }
+   public static void searchProducts(Amazon esql, String authorisedUser) {
+      try {
+         prompt("Enter the product name, or the start of it, to search for");
+         String prefix = readStringChoice();
+         List<List<String>> userCoords = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Users WHERE userID = %s;", authorisedUser));
+         double userLat = Double.parseDouble(userCoords.get(0).get(0));
+         double userLong = Double.parseDouble(userCoords.get(0).get(1));
+         List<ProductSearchIndex.Posting> matches = esql.productSearchIndex().search(prefix, userLat, userLong, true, 20);
+         if (matches.size() == 0){
+            System.out.println("❌ No stores carry " + prefix + " in stock");
+            return;
+         }
+         banner();
+         for (int i = 0; i < matches.size(); ++i)
+         {
+            ProductSearchIndex.Posting match = matches.get(i);
+            System.out.println(String.format("Store ID: %d Distance: %.2f Product Name: %s Number of Units: %d Price per Unit: %s", match.storeId, match.distance, match.productName, match.numberOfUnits, match.pricePerUnit));
+         }
+         banner();
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
    public static void viewRecentOrders(Amazon esql, String authorisedUser) {
       try {
-         List<List<String>> recentOrders = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Orders WHERE customerID = '%s' ORDER BY orderTime DESC LIMIT 5;", authorisedUser));
+         List<List<String>> recentOrders = esql.executeQueryAndReturnResult(String.format("SELECT orderNumber, customerID, storeID, productID, orderTime, unitsOrdered FROM Orders WHERE customerID = '%s' ORDER BY orderTime DESC LIMIT 5;", authorisedUser));
          if (recentOrders.size() == 0){
             System.out.println("❌ No recent orders found");
             return;
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i < recentOrders.size(); ++i)
          {
-            System.out.println("Order ID: " + recentOrders.get(i).get(0) + " Customer ID: " + recentOrders.get(i).get(1) + " Store ID: " + recentOrders.get(i).get(2) + " Product Name: " + recentOrders.get(i).get(3) + " Order Time: " + recentOrders.get(i).get(4) + " Number of Units: " + recentOrders.get(i).get(5));
+            System.out.println("Order ID: " + recentOrders.get(i).get(0) + " Customer ID: " + recentOrders.get(i).get(1) + " Store ID: " + recentOrders.get(i).get(2) + " Product Name: " + esql.productName(recentOrders.get(i).get(3)) + " Order Time: " + recentOrders.get(i).get(4) + " Number of Units: " + recentOrders.get(i).get(5));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
@@ -550,7 +3067,7 @@ public class Amazon {
    }
    public static void managerUpdateProduct(Amazon esql, String authorisedUser) {
       try{
-         System.out.println("Enter the storeID of a store to update a product from");
+         prompt("Enter the storeID of a store to update a product from");
          int storeId = readChoice();
          List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
          if (store.size() == 0){
@@ -569,21 +3086,33 @@ public class Amazon {
                return;
             }
          
-         System.out.println("Enter the product name of a product to update");
+         prompt("Enter the product name of a product to update");
          String productName = readStringChoice();
-         List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Product WHERE storeID = %d AND productName = '%s';", storeId, productName));
+         int productId = esql.productId(productName);
+         List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Product WHERE storeID = %d AND productID = %d;", storeId, productId));
          if (productInfo.size() == 0){
             System.out.println("❌ Product " + productName + " does not exist in storeID " + storeId);
             return;
          }
-         System.out.println("Enter the new number of units");
+         prompt("Enter the new number of units");
          int numberOfUnits = readChoice();
-         System.out.println("Enter the new price per unit");
+         prompt("Enter the new price per unit");
          int pricePerUnit = readChoice();
-         String query = String.format("UPDATE Product SET numberOfUnits = %d, pricePerUnit = %d WHERE storeID = %d AND productName = '%s'", numberOfUnits, pricePerUnit, storeId, productName);
-         esql.executeUpdate(query);
-         query = String.format("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ('%s', %d, '%s', CURRENT_TIMESTAMP)", authorisedUser, storeId, productName);
-         esql.executeUpdate(query);
+         // the product change and its audit row commit together or not at all
+         UnitOfWork work = esql.beginUnitOfWork();
+         try {
+            esql.resetStockShards(storeId, productName);
+            String query = String.format("UPDATE Product SET numberOfUnits = %d, pricePerUnit = %d WHERE storeID = %d AND productID = %d", numberOfUnits, pricePerUnit, storeId, productId);
+            esql.executeUpdate(query);
+            query = String.format("INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) VALUES ('%s', %d, %d, CURRENT_TIMESTAMP)", authorisedUser, storeId, productId);
+            work.addBatch(query);
+            work.commit();
+         }
+         finally {
+            work.rollback();
+         }
+         esql.journal(EventJournal.PRODUCT_UPDATED, authorisedUser, storeId, productName, numberOfUnits, pricePerUnit);
+         esql.refreshSearchIndex(storeId, productName);
       }
       catch(Exception e){
          System.err.println(e.getMessage());
@@ -591,9 +3120,62 @@ public class Amazon {
       }
       System.out.println("✅ Product Updated");
    }
+   public static void managerRepriceStore(Amazon esql, String authorisedUser) {
+      try{
+         prompt("Enter the storeID of a store to reprice");
+         int storeId = readChoice();
+         List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
+         if (store.size() == 0){
+            System.out.println("❌ StoreID " + storeId + " does not exist");
+            return;
+         }
+            if(checkManagerPermission(esql, authorisedUser))
+            {  
+               if (!store.get(0).get(3).equals(authorisedUser)){
+                  System.out.println("❌ You must be the manager of store " + storeId + " to reprice products");
+                  return;
+               }
+            }
+            else
+            {
+               return;
+            }
+         prompt("Enter the price change in percent (e.g. 10 or -5)");
+         int percent = readChoice();
+         if (percent <= -100){
+            System.out.println("❌ Price change must be greater than -100 percent");
+            return;
+         }
+
+         // every product of the store is repriced and audited in one commit,
+         // the audit rows written by a single INSERT ... SELECT
+         UnitOfWork work = esql.beginUnitOfWork();
+         try {
+            String query = String.format("UPDATE Product SET pricePerUnit = pricePerUnit * %d / 100.0 WHERE storeID = %d", 100 + percent, storeId);
+            esql.executeUpdate(query);
+            query = String.format("INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) SELECT '%s', storeID, productID, CURRENT_TIMESTAMP FROM Product WHERE storeID = %d RETURNING productID", authorisedUser, storeId);
+            List<List<String>> products = esql.executeQueryAndReturnResult(query);
+            if (products.size() == 0){
+               System.out.println("❌ No products found for storeID " + storeId);
+               return;
+            }
+            work.commit();
+            for (int i = 0; i < products.size(); ++i)
+               esql.journal(EventJournal.PRODUCT_UPDATED, authorisedUser, storeId, esql.productName(products.get(i).get(0)), -1, -1);
+            esql.refreshSearchIndex(storeId, null);
+            System.out.println("✅ " + products.size() + " products repriced");
+         }
+         finally {
+            work.rollback();
+         }
+      }
+      catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
    public static void viewRecentUpdates(Amazon esql, String authorisedUser) {
       try {
-         System.out.println("Enter the storeID of a store to view Product Updates Info from");
+         prompt("Enter the storeID of a store to view Product Updates Info from");
          int storeId = readChoice();
          List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
          if (store.size() == 0){
@@ -611,16 +3193,16 @@ public class Amazon {
             {
                return;
             }
-         List<List<String>> recentUpdates = esql.executeQueryAndReturnResult(String.format("SELECT * FROM ProductUpdates WHERE storeID = '%s' ORDER BY updatedOn DESC LIMIT 5;", storeId));
+         List<List<String>> recentUpdates = esql.executeQueryAndReturnResult(String.format("SELECT updateNumber, managerID, storeID, productID, updatedOn FROM ProductUpdates WHERE storeID = '%s' ORDER BY updatedOn DESC LIMIT 5;", storeId));
          if (recentUpdates.size() == 0){
             System.out.println("❌ No recent updates found");
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i < recentUpdates.size(); ++i)
          {
-            System.out.println("Update Number: " + recentUpdates.get(i).get(0) + " Manager ID: " + recentUpdates.get(i).get(1) + " Store ID: " + recentUpdates.get(i).get(2) + " Product Name: " + recentUpdates.get(i).get(3) + " Updated On: " + recentUpdates.get(i).get(4));
+            System.out.println("Update Number: " + recentUpdates.get(i).get(0) + " Manager ID: " + recentUpdates.get(i).get(1) + " Store ID: " + recentUpdates.get(i).get(2) + " Product Name: " + esql.productName(recentUpdates.get(i).get(3)) + " Updated On: " + recentUpdates.get(i).get(4));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
@@ -629,7 +3211,7 @@ public class Amazon {
    }
    public static void viewPopularProducts(Amazon esql, String authorisedUser) {
       try {
-         System.out.println("Enter the storeID of a store to view popular products from");
+         prompt("Enter the storeID of a store to view popular products from");
          int storeId = readChoice();
          List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
          if (store.size() == 0){
@@ -647,14 +3229,14 @@ public class Amazon {
             {
                return;
             }
-         List<List<String>> popularProducts = esql.executeQueryAndReturnResult(String.format("SELECT productName, SUM(unitsOrdered) FROM Orders WHERE storeID = %d GROUP BY productName ORDER BY SUM(unitsOrdered) DESC LIMIT 5;", storeId));
+         List<List<String>> popularProducts = esql.executeQueryAndReturnResult(String.format("SELECT productID, SUM(unitsOrdered) FROM Orders WHERE storeID = %d GROUP BY productID ORDER BY SUM(unitsOrdered) DESC LIMIT 5;", storeId));
          System.out.println(popularProducts);
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i<popularProducts.size(); ++i)
          {
-            System.out.println(String.format(i+1 + ": " + "Product Name: %s Units ordered: %s", popularProducts.get(i).get(0), popularProducts.get(i).get(1)));
+            System.out.println(String.format(i+1 + ": " + "Product Name: %s Units ordered: %s", esql.productName(popularProducts.get(i).get(0)), popularProducts.get(i).get(1)));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
@@ -662,7 +3244,7 @@ public class Amazon {
    }
    public static void viewPopularCustomers(Amazon esql, String authorisedUser) {
       try {
-         System.out.println("Enter the storeID of a store to view popular customers from");
+         prompt("Enter the storeID of a store to view popular customers from");
          int storeId = readChoice();
          List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
          if (store.size() == 0){
@@ -682,20 +3264,81 @@ public class Amazon {
             }
          List<List<String>> popularCustomers = esql.executeQueryAndReturnResult(String.format("SELECT customerID, COUNT(*) FROM Orders WHERE storeID = %d GROUP BY customerID ORDER BY COUNT(*) DESC LIMIT 5;", storeId));
          
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i<popularCustomers.size(); ++i)
          {
             System.out.println(String.format(i+1 + ": " + "Customer ID: %s Number of orders: %s", popularCustomers.get(i).get(0), popularCustomers.get(i).get(1)));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   public static void viewSalesReport(Amazon esql, String authorisedUser) {
+      try {
+         prompt("Enter the storeID of a store to view sales from");
+         int storeId = readChoice();
+         List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
+         if (store.size() == 0){
+            System.out.println("❌ StoreID " + storeId + " does not exist");
+            return;
+         } 
+         if(checkManagerPermission(esql, authorisedUser))
+            {  
+               if (!store.get(0).get(3).equals(authorisedUser)){
+                  System.out.println("❌ You must be the manager of store " + storeId + " to view sales");
+                  return;
+               }
+            }
+            else
+            {
+               return;
+            }
+         prompt("Enter the start of the window (yyyy-mm-dd or yyyy-mm-dd hh:mm)");
+         LocalDateTime from = parseDateTime(readStringChoice());
+         prompt("Enter the end of the window (yyyy-mm-dd or yyyy-mm-dd hh:mm)");
+         LocalDateTime to = parseDateTime(readStringChoice());
+         prompt("Enter the granularity (hour, day, week or total)");
+         String granularity = readStringChoice().trim().toLowerCase();
+
+         banner();
+         if (granularity.equals("total")){
+            List<List<String>> totals = esql.querySalesTotals(storeId, from, to);
+            if (totals.size() == 0){
+               System.out.println("❌ No sales found");
+            }
+            for (int i = 0; i < totals.size(); ++i)
+            {
+               System.out.println("Product Name: " + totals.get(i).get(0) + " Units ordered: " + totals.get(i).get(1) + " Revenue: " + totals.get(i).get(2));
+            }
+         }
+         else {
+            List<List<String>> series = esql.querySalesSeries(storeId, granularity, from, to);
+            if (series.size() == 0){
+               System.out.println("❌ No sales found");
+            }
+            for (int i = 0; i < series.size(); ++i)
+            {
+               System.out.println("Bucket: " + series.get(i).get(0) + " Units ordered: " + series.get(i).get(1) + " Revenue: " + series.get(i).get(2));
+            }
+         }
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
       }
    }
+   // accepts "yyyy-mm-dd" or "yyyy-mm-dd hh:mm"
+   public static LocalDateTime parseDateTime(String input) {
+      String value = input.trim();
+      if (value.length() == 10)
+         value = value + " 00:00";
+      return LocalDateTime.parse(value.replace(' ', 'T'));
+   }
    public static void placeProductSupplyRequests(Amazon esql, String authorisedUser) {
       try {
-         System.out.println("Enter the storeID of a store to supply a product request to");
+         prompt("Enter the storeID of a store to supply a product request to");
          int storeId = readChoice();
          List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
          if (store.size() == 0){
@@ -713,29 +3356,38 @@ public class Amazon {
             {
                return;
             }
-         System.out.println("Enter the product name of a product to request");
+         prompt("Enter the product name of a product to request");
          String productName = readStringChoice();
-         System.out.println("Enter the number of units to request");
+         prompt("Enter the number of units to request");
          int numberOfUnits = readChoice();
-         System.out.println("Enter the warehouseID of the warehouse to request from");
+         prompt("Enter the warehouseID of the warehouse to request from");
          int warehouseId = readChoice();
 
-         String checkProduct = String.format("SELECT EXISTS(SELECT * FROM product WHERE productname='%s');", productName);
-         List<List<String>> productExists = esql.executeQueryAndReturnResult(checkProduct);
-         if (productExists.get(0).get(0).equals("f"))
-         {
-            System.out.println("❌ product doesn't exist");
-            return;
+         // the existence checks and the insert run in one transaction
+         UnitOfWork work = esql.beginUnitOfWork();
+         try {
+            int productId = esql.productId(productName);
+            String checkExists = String.format("SELECT EXISTS(SELECT * FROM product WHERE storeid = %d AND productid = %d), EXISTS(SELECT * FROM warehouse WHERE warehouseid='%d');", storeId, productId, warehouseId);
+            List<List<String>> exists = esql.executeQueryAndReturnResult(checkExists);
+            if (exists.get(0).get(0).equals("f"))
+            {
+               System.out.println("❌ product doesn't exist");
+               return;
+            }
+            if (exists.get(0).get(1).equals("f"))
+            {
+               System.out.println("❌ warehouse doesn't exist");
+               return;
+            }
+            String updateQuery = String.format("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productID, unitsRequested) VALUES (%s, %d, %d, %d, %d)", authorisedUser, warehouseId, storeId, productId, numberOfUnits);
+            esql.executeUpdate(updateQuery);
+            work.commit();
          }
-         String checkWarehouse = String.format("SELECT EXISTS(SELECT * FROM warehouse WHERE warehouseid='%d');", warehouseId);
-         List<List<String>> warehouseExists = esql.executeQueryAndReturnResult(checkWarehouse);
-         if (warehouseExists.get(0).get(0).equals("f"))
-         {
-            System.out.println("❌ warehouse doesn't exist");
-            return;
+         finally {
+            work.rollback();
          }
-         String updateQuery = String.format("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%s, %d, %d, '%s', %d)", authorisedUser, warehouseId, storeId, productName, numberOfUnits);
-         esql.executeUpdate(updateQuery);
+         esql.journal(EventJournal.SUPPLY_REQUESTED, authorisedUser, storeId, productName, numberOfUnits, warehouseId);
+         esql.refreshSearchIndex(storeId, productName);
          // updateQuery = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + %d WHERE storeID = %d AND productName = '%s'", numberOfUnits, storeId, productName);
          // esql.executeUpdate(updateQuery);
       } catch(Exception e){
@@ -744,6 +3396,84 @@ public class Amazon {
       }
       System.out.println("✅ product request placed!!!");
    }
+   public static void placeBatchProductSupplyRequests(Amazon esql, String authorisedUser) {
+      try {
+         prompt("Enter the storeID of a store to supply a product request to");
+         int storeId = readChoice();
+         List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
+         if (store.size() == 0){
+            System.out.println("❌ StoreID " + storeId + " does not exist");
+            return;
+         } 
+         if(checkManagerPermission(esql, authorisedUser))
+            {  
+               if (!store.get(0).get(3).equals(authorisedUser)){
+                  System.out.println("❌ You must be the manager of store " + storeId + " to supply a product request");
+                  return;
+               }
+            }
+            else
+            {
+               return;
+            }
+         prompt("Enter the manifest file with one productName,units,warehouseID per line, or nothing to type the lines");
+         String path = readStringChoice().trim();
+         BufferedReader manifest = path.length() == 0 ? input() : new BufferedReader(new FileReader(path));
+         if (path.length() == 0)
+            prompt("Enter one productName,units,warehouseID per line, and an empty line to finish");
+         List<SupplyRequestLine> lines = new ArrayList<SupplyRequestLine>();
+         try {
+            for (String line = manifest.readLine(); line != null && (path.length() > 0 || line.trim().length() > 0); line = manifest.readLine()){
+               if (line.trim().length() > 0)
+                  lines.add(SupplyRequestLine.parse(line));
+            }
+         }
+         finally {
+            if (manifest != input())
+               manifest.close();
+         }
+         List<String> problems = esql.placeSupplyRequestBatch(authorisedUser, storeId, lines);
+         if (problems.size() > 0){
+            for (int i = 0; i < problems.size(); ++i)
+               System.out.println("❌ " + problems.get(i));
+            System.out.println("❌ no product requests placed");
+            return;
+         }
+         System.out.println("✅ " + lines.size() + " product requests placed!!!");
+      } catch(Exception e){
+         System.err.println ("❌"+e.getMessage());
+      }
+   }
+   public static void planWarehouseRestock(Amazon esql, String authorisedUser) {
+      if(!checkAdminPermission( esql, authorisedUser))
+         return;
+      try {
+         System.out.println("Restock products with fewer units than");
+         int threshold = readChoice();
+         System.out.println("Restock them up to how many units");
+         int targetUnits = readChoice();
+         long start = System.nanoTime();
+         List<RestockLine> plan = esql.planRestock(threshold, targetUnits);
+         if (plan.size() == 0){
+            System.out.println("❌ No products need restocking");
+            return;
+         }
+         banner();
+         for (int i = 0; i < plan.size(); ++i)
+         {
+            RestockLine line = plan.get(i);
+            System.out.println(String.format("Store ID: %d Product Name: %s Units: %d Warehouse ID: %d Distance: %.2f", line.storeId, esql.productName(Integer.toString(line.productId)), line.unitsRequested, line.warehouseId, line.distance));
+         }
+         banner();
+         System.out.println(String.format("%d supply requests planned in %.1f ms. Place them? (y/n)", plan.size(), (System.nanoTime() - start) / 1e6));
+         if (!readStringChoice().trim().equalsIgnoreCase("y"))
+            return;
+         esql.placeRestockPlan(plan);
+         System.out.println("✅ " + plan.size() + " product requests placed!!!");
+      } catch(Exception e){
+         System.err.println ("❌"+e.getMessage());
+      }
+   }
    public static boolean checkAdminPermission(Amazon esql, String authorisedUser)
    {
       String checkTypeQuery = "SELECT type FROM users WHERE userid = "+authorisedUser;
@@ -798,25 +3528,53 @@ public class Amazon {
    public static void viewAllOrders(Amazon esql, String authorisedUser)
    {
       if(!checkManagerPermission(esql, authorisedUser)) return;
-      String viewOrderQuery = "SELECT o.ordernumber, u.name, s.storeid, o.productname, o.ordertime, o.unitsordered FROM orders o, store s, users u WHERE s.managerid = "+authorisedUser+" AND s.storeid = o.storeid AND u.userid = o.customerid;";
+      String viewOrderQuery = "SELECT o.ordernumber, u.name, s.storeid, o.productid, o.ordertime, o.unitsordered FROM orders o, store s, users u WHERE s.managerid = "+authorisedUser+" AND s.storeid = o.storeid AND u.userid = o.customerid;";
       try {
          List<List<String>> orders = esql.executeQueryAndReturnResult(viewOrderQuery);
          if (orders.size() == 0){
             System.out.println("❌ No orders found");
             return;
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i < orders.size(); ++i)
          {
-            System.out.println("Order ID: " + orders.get(i).get(0) + " Customer Name: " + orders.get(i).get(1) + " Store ID: " + orders.get(i).get(2) + " Product Name: " + orders.get(i).get(3) + " Order Time: " + orders.get(i).get(4) + " Number of Units: " + orders.get(i).get(5));
+            System.out.println("Order ID: " + orders.get(i).get(0) + " Customer Name: " + orders.get(i).get(1) + " Store ID: " + orders.get(i).get(2) + " Product Name: " + esql.productName(orders.get(i).get(3)) + " Order Time: " + orders.get(i).get(4) + " Number of Units: " + orders.get(i).get(5));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
       }
       return ;
    }
+   public static void compactStockCounters(Amazon esql, String authorisedUser)
+   {
+      if(!checkAdminPermission( esql, authorisedUser))
+         return;
+      try {
+         int folded = esql.compactStockShards();
+         System.out.println("✅ stock counters compacted for " + folded + " products");
+         folded = esql.compactSalesRollups();
+         System.out.println("✅ " + folded + " orders folded into the sales rollups");
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   public static void exportOrdersSnapshot(Amazon esql, String authorisedUser)
+   {
+      if(!checkAdminPermission( esql, authorisedUser))
+         return;
+      try {
+         prompt("Enter the file to write the snapshot to");
+         String path = readStringChoice();
+         int rows = esql.exportOrdersSnapshot(new File(path.trim()));
+         System.out.println("✅ " + rows + " orders written, run java Amazon --analyze " + path.trim());
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
    public static void viewAllUsers(Amazon esql, String authorisedUser)
    {
       if(!checkAdminPermission( esql, authorisedUser))
@@ -827,12 +3585,12 @@ public class Amazon {
          if (users.size() == 0){
             System.out.println("❌ No users found");
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
          for (int i = 0; i < users.size(); ++i)
          {
             System.out.println(String.format("User ID: "+users.get(i).get(0)+" \tName: "+users.get(i).get(1)+"\tlatitude: "+users.get(i).get(3)+"\tlongitude"+users.get(i).get(4)+"\ttype: "+users.get(i).get(5)));
          }
-         System.out.println("⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️⭐️");
+         banner();
       }
       catch(Exception e){
          System.err.println (e.getMessage());
@@ -857,17 +3615,17 @@ public class Amazon {
       if(!checkAdminPermission( esql, authorisedUser))
          return;
       try{
-         System.out.println("Enter the userid");
+         prompt("Enter the userid");
          int userid = readChoice();
          if(!checkUserExist(esql, authorisedUser, userid)) return;
-         System.out.println("Enter the new name of this user");
-         String name = in.readLine();
-         System.out.println("Enter the new latitude");
+         prompt("Enter the new name of this user");
+         String name = readAnswer();
+         prompt("Enter the new latitude");
          int latitude = readChoice();
-         System.out.println("Enter the new longitude");
+         prompt("Enter the new longitude");
          int longitude = readChoice();
-         System.out.println("Enter the new type");
-         String type = in.readLine();
+         prompt("Enter the new type");
+         String type = readAnswer();
          if (!type.equals("customer") && !type.equals("manager") && !type.equals("admin"))
          {
             System.out.println("❌ type can only be admin, manager or customer");
@@ -888,27 +3646,37 @@ public class Amazon {
       if(!checkAdminPermission( esql, authorisedUser))
          return;
       try{
-         System.out.println("Enter the storeid");
+         prompt("Enter the storeid");
          int storeId = readChoice();
          List<List<String>> store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store WHERE storeID = %d;", storeId));
          if (store.size() == 0){
             System.out.println("❌ StoreID " + storeId + " does not exist");
             return;
          }
-         System.out.println("Enter the productname");
-         String productName = in.readLine();
-         List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Product WHERE storeID = %d AND productName = '%s';", storeId, productName));
+         prompt("Enter the productname");
+         String productName = readAnswer();
+         int productId = esql.productId(productName);
+         List<List<String>> productInfo = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Product WHERE storeID = %d AND productID = %d;", storeId, productId));
          if (productInfo.size() == 0){
             System.out.println("❌ Product " + productName + " does not exist in storeID " + storeId);
             return;
          }
-         System.out.println("Enter the new numberOfUnits");
+         prompt("Enter the new numberOfUnits");
          int numberOfUnits = readChoice();
-         System.out.println("Enter the new pricePerUnit");
+         prompt("Enter the new pricePerUnit");
          int pricePerUnit = readChoice();
    
-         String query = String.format("UPDATE Product SET numberOfUnits = '%s', pricePerUnit = %d WHERE storeid = %d AND productName = '%s'", numberOfUnits, pricePerUnit, storeId,productName);
-         esql.executeUpdate(query);
+         UnitOfWork work = esql.beginUnitOfWork();
+         try {
+            esql.resetStockShards(storeId, productName);
+            String query = String.format("UPDATE Product SET numberOfUnits = '%s', pricePerUnit = %d WHERE storeid = %d AND productID = %d", numberOfUnits, pricePerUnit, storeId,productId);
+            esql.executeUpdate(query);
+            work.commit();
+         }
+         finally {
+            work.rollback();
+         }
+         esql.refreshSearchIndex(storeId, productName);
       }
       catch(Exception e){
          System.err.println(e.getMessage());
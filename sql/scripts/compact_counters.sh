@@ -0,0 +1,8 @@
+#!/bin/bash
+# Folds the stock counter shards into Product and the pending sales into the
+# sales rollups. Orders already do this every StockCounterConfig.compactEvery
+# orders; run this from cron as well so quiet periods get folded too, e.g.
+#
+#    */5 * * * * PGPORT=<port> USER=<user> /path/to/sql/scripts/compact_counters.sh
+#
+cs166_psql -p $PGPORT $USER"_phase3_DB" -c "SELECT compact_stock_shards(), compact_sales_rollups();"
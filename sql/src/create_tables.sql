@@ -1,10 +1,18 @@
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS Product CASCADE;
+DROP TABLE IF EXISTS ProductDictionary CASCADE;
 DROP TABLE IF EXISTS Users CASCADE;
 DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS StockCounterConfig CASCADE;
+DROP TABLE IF EXISTS ProductStockShard CASCADE;
+DROP TABLE IF EXISTS SalesRollupHour CASCADE;
+DROP TABLE IF EXISTS SalesRollupDay CASCADE;
+DROP TABLE IF EXISTS SalesRollupWeek CASCADE;
+DROP TABLE IF EXISTS SalesRollupPending CASCADE;
+DROP SEQUENCE IF EXISTS CounterCompactionTicks;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -26,13 +34,21 @@ CREATE TABLE Store ( storeID integer,
                      FOREIGN KEY(managerID) REFERENCES Users(userID)
 );
 
+-- every product name once; the other tables refer to products by productID
+CREATE TABLE ProductDictionary ( productID serial,
+                                 productName char(30) NOT NULL,
+                                 PRIMARY KEY(productID),
+                                 UNIQUE(productName)
+);
+
 CREATE TABLE Product ( storeID integer NOT NULL, 
-                       productName char(30) NOT NULL,
+                       productID integer NOT NULL,
                        numberOfUnits integer NOT NULL,
                        pricePerUnit float NOT NULL,
-                       PRIMARY KEY(storeID, productName), 
+                       PRIMARY KEY(storeID, productID), 
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
-		               ON DELETE CASCADE
+		               ON DELETE CASCADE,
+                       FOREIGN KEY(productID) REFERENCES ProductDictionary(productID)
 );
 
 CREATE TABLE Warehouse ( WarehouseID integer,
@@ -45,12 +61,12 @@ CREATE TABLE Orders (
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
                      storeID integer NOT NULL,
-                     productName char(30) NOT NULL, 
+                     productID integer NOT NULL,
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
                      PRIMARY KEY(orderNumber),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                     FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
 );
 
 CREATE TABLE ProductSupplyRequests (  
@@ -58,21 +74,83 @@ CREATE TABLE ProductSupplyRequests (
 							   managerID integer NOT NULL,    --User ID of the Manager who makes the supply request
 							   warehouseID integer NOT NULL,
                                storeID integer NOT NULL,
-                               productName char(30) NOT NULL, 
+                               productID integer NOT NULL,
 							   unitsRequested integer NOT NULL,
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
-                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                               FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
 );
 
 CREATE TABLE ProductUpdates (
 	 						updateNumber serial,	
 							managerID integer NOT NULL,
                         	storeID integer NOT NULL,
-                       		productName char(30) NOT NULL, 
+                       		productID integer NOT NULL,
                             updatedOn timestamp NOT NULL,
                         	PRIMARY KEY(updateNumber),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
-                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                        	FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+);
+
+-- number of delta rows per product used for stock counting. 0 or 1 keeps
+-- numberOfUnits updated in place; more spreads hot products over shards.
+-- compactEvery orders the shards and the pending sales are folded, 0 leaves
+-- it to compact_counters.sh and admin option 15
+CREATE TABLE StockCounterConfig ( numberOfShards integer NOT NULL CHECK (numberOfShards >= 0),
+                                  compactEvery integer NOT NULL DEFAULT 10000 CHECK (compactEvery >= 0) );
+INSERT INTO StockCounterConfig (numberOfShards) VALUES (0);
+
+-- counts orders for maybe_compact_counters(); a sequence, so it is never locked
+CREATE SEQUENCE CounterCompactionTicks;
+
+CREATE TABLE ProductStockShard ( storeID integer NOT NULL,
+                                 productID integer NOT NULL,
+                                 shard integer NOT NULL,
+                                 delta integer NOT NULL,
+                                 PRIMARY KEY(storeID, productID, shard),
+                                 FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+                                 ON DELETE CASCADE
+);
+
+-- current stock: the base count plus any deltas not yet compacted
+CREATE VIEW ProductStock AS
+SELECT p.storeID, p.productID,
+       p.numberOfUnits + COALESCE((SELECT SUM(s.delta) FROM ProductStockShard s
+                                   WHERE s.storeID = p.storeID AND s.productID = p.productID), 0) AS numberOfUnits,
+       p.pricePerUnit
+FROM Product p;
+
+-- sales per (store, product, bucket), folded from SalesRollupPending by compact_sales_rollups()
+CREATE TABLE SalesRollupHour ( storeID integer NOT NULL,
+                               productID integer NOT NULL,
+                               bucket timestamp NOT NULL,   -- date_trunc('hour', orderTime)
+                               unitsOrdered bigint NOT NULL,
+                               revenue float NOT NULL,      -- unitsOrdered * pricePerUnit at order time
+                               PRIMARY KEY(storeID, bucket, productID)
+);
+
+CREATE TABLE SalesRollupDay ( storeID integer NOT NULL,
+                               productID integer NOT NULL,
+                               bucket timestamp NOT NULL,   -- date_trunc('day', orderTime)
+                               unitsOrdered bigint NOT NULL,
+                               revenue float NOT NULL,      -- unitsOrdered * pricePerUnit at order time
+                               PRIMARY KEY(storeID, bucket, productID)
+);
+
+CREATE TABLE SalesRollupWeek ( storeID integer NOT NULL,
+                               productID integer NOT NULL,
+                               bucket timestamp NOT NULL,   -- date_trunc('week', orderTime)
+                               unitsOrdered bigint NOT NULL,
+                               revenue float NOT NULL,      -- unitsOrdered * pricePerUnit at order time
+                               PRIMARY KEY(storeID, bucket, productID)
+);
+
+-- one row per order, appended by the record_order_sales trigger; no key, so
+-- concurrent orders of the same product never wait on each other
+CREATE TABLE SalesRollupPending ( storeID integer NOT NULL,
+                                  productID integer NOT NULL,
+                                  orderTime timestamp NOT NULL,
+                                  unitsOrdered integer NOT NULL,
+                                  revenue float NOT NULL
 );
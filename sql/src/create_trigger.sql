@@ -1,12 +1,53 @@
 DROP TRIGGER IF EXISTS updateunits ON orders;
 DROP TRIGGER IF EXISTS updatesupply ON ProductSupplyRequests;
+DROP TRIGGER IF EXISTS recordsales ON orders;
+DROP FUNCTION IF EXISTS apply_stock_delta(integer, char, integer);
+
+CREATE OR REPLACE FUNCTION apply_stock_delta(sid integer, pid integer, units integer)
+RETURNS void AS $$
+DECLARE
+    shards integer;
+BEGIN
+    SELECT numberOfShards INTO shards FROM StockCounterConfig;
+    IF shards IS NULL OR shards < 2 THEN
+        UPDATE Product 
+        SET numberOfUnits = numberOfUnits + units 
+        WHERE storeID = sid AND productID = pid;
+        RETURN;
+    END IF;
+    -- each session hashes to its own shard so writers of a hot product don't queue on one row
+    INSERT INTO ProductStockShard (storeID, productID, shard, delta)
+    VALUES (sid, pid, pg_backend_pid() % shards, units)
+    ON CONFLICT (storeID, productID, shard)
+    DO UPDATE SET delta = ProductStockShard.delta + EXCLUDED.delta;
+END;
+$$ LANGUAGE plpgsql;
+
+-- folds every shard back into Product.numberOfUnits, returns the number of products touched
+CREATE OR REPLACE FUNCTION compact_stock_shards()
+RETURNS integer AS $$
+DECLARE
+    folded integer;
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtext('compact_counters'));
+    WITH drained AS (
+        DELETE FROM ProductStockShard RETURNING storeID, productID, delta
+    ), totals AS (
+        SELECT storeID, productID, SUM(delta) AS delta FROM drained GROUP BY storeID, productID
+    )
+    UPDATE Product p
+    SET numberOfUnits = p.numberOfUnits + t.delta
+    FROM totals t
+    WHERE p.storeID = t.storeID AND p.productID = t.productID;
+    GET DIAGNOSTICS folded = ROW_COUNT;
+    RETURN folded;
+END;
+$$ LANGUAGE plpgsql;
 
 CREATE OR REPLACE FUNCTION update_product_units()
 RETURNS TRIGGER AS $$
 BEGIN
-    UPDATE Product 
-    SET numberOfUnits = numberOfUnits - NEW.unitsordered 
-    WHERE storeID = NEW.storeid AND productName = NEW.productName;
+    PERFORM apply_stock_delta(NEW.storeid, NEW.productID, -NEW.unitsordered);
     RETURN NEW;
 END;
 $$ LANGUAGE plpgsql;
@@ -16,20 +57,106 @@ AFTER INSERT ON orders
 FOR EACH ROW
 EXECUTE PROCEDURE update_product_units();
 
+-- runs once per INSERT statement, so a multi-row supply request applies
+-- one stock change per product instead of one per row
 CREATE OR REPLACE FUNCTION update_supply_request()
 RETURNS TRIGGER AS $$
+DECLARE
+    shards integer;
 BEGIN
-    UPDATE Product 
-    SET numberOfUnits = numberOfUnits + NEW.unitsRequested 
-    WHERE storeID = NEW.storeid AND productName = NEW.productName;
-    RETURN NEW;
+    SELECT numberOfShards INTO shards FROM StockCounterConfig;
+    IF shards IS NULL OR shards < 2 THEN
+        UPDATE Product p
+        SET numberOfUnits = p.numberOfUnits + a.units
+        FROM (SELECT storeID, productID, SUM(unitsRequested) AS units FROM added GROUP BY storeID, productID) a
+        WHERE p.storeID = a.storeID AND p.productID = a.productID;
+    ELSE
+        INSERT INTO ProductStockShard (storeID, productID, shard, delta)
+        SELECT storeID, productID, pg_backend_pid() % shards, SUM(unitsRequested)
+        FROM added GROUP BY storeID, productID
+        ON CONFLICT (storeID, productID, shard)
+        DO UPDATE SET delta = ProductStockShard.delta + EXCLUDED.delta;
+    END IF;
+    RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
 
 CREATE TRIGGER updatesupply 
 AFTER INSERT ON ProductSupplyRequests 
-FOR EACH ROW
+REFERENCING NEW TABLE AS added
+FOR EACH STATEMENT
 EXECUTE PROCEDURE update_supply_request();
 
+-- folds every pending sale into the hour, day and week rollups, returns the number of orders folded
+CREATE OR REPLACE FUNCTION compact_sales_rollups()
+RETURNS integer AS $$
+DECLARE
+    folded integer;
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtext('compact_counters'));
+    WITH drained AS (
+        DELETE FROM SalesRollupPending RETURNING storeID, productID, orderTime, unitsOrdered, revenue
+    ), hours AS (
+        INSERT INTO SalesRollupHour (storeID, productID, bucket, unitsOrdered, revenue)
+        SELECT storeID, productID, date_trunc('hour', orderTime), SUM(unitsOrdered), SUM(revenue)
+        FROM drained GROUP BY storeID, productID, date_trunc('hour', orderTime)
+        ON CONFLICT (storeID, bucket, productID)
+        DO UPDATE SET unitsOrdered = SalesRollupHour.unitsOrdered + EXCLUDED.unitsOrdered,
+                      revenue = SalesRollupHour.revenue + EXCLUDED.revenue
+    ), days AS (
+        INSERT INTO SalesRollupDay (storeID, productID, bucket, unitsOrdered, revenue)
+        SELECT storeID, productID, date_trunc('day', orderTime), SUM(unitsOrdered), SUM(revenue)
+        FROM drained GROUP BY storeID, productID, date_trunc('day', orderTime)
+        ON CONFLICT (storeID, bucket, productID)
+        DO UPDATE SET unitsOrdered = SalesRollupDay.unitsOrdered + EXCLUDED.unitsOrdered,
+                      revenue = SalesRollupDay.revenue + EXCLUDED.revenue
+    ), weeks AS (
+        INSERT INTO SalesRollupWeek (storeID, productID, bucket, unitsOrdered, revenue)
+        SELECT storeID, productID, date_trunc('week', orderTime), SUM(unitsOrdered), SUM(revenue)
+        FROM drained GROUP BY storeID, productID, date_trunc('week', orderTime)
+        ON CONFLICT (storeID, bucket, productID)
+        DO UPDATE SET unitsOrdered = SalesRollupWeek.unitsOrdered + EXCLUDED.unitsOrdered,
+                      revenue = SalesRollupWeek.revenue + EXCLUDED.revenue
+    )
+    SELECT COUNT(*) INTO folded FROM drained;
+    RETURN folded;
+END;
+$$ LANGUAGE plpgsql;
 
+-- every compactEvery orders, the order that draws the tick folds the stock
+-- shards and the pending sales; it is skipped when a compaction is running
+CREATE OR REPLACE FUNCTION maybe_compact_counters()
+RETURNS void AS $$
+DECLARE
+    every integer;
+BEGIN
+    SELECT compactEvery INTO every FROM StockCounterConfig;
+    IF every IS NULL OR every < 1 OR nextval('CounterCompactionTicks') % every <> 0 THEN
+        RETURN;
+    END IF;
+    IF pg_try_advisory_xact_lock(hashtext('compact_counters')) THEN
+        PERFORM compact_stock_shards();
+        PERFORM compact_sales_rollups();
+    END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION record_order_sales()
+RETURNS TRIGGER AS $$
+DECLARE
+    price float;
+BEGIN
+    SELECT pricePerUnit INTO price FROM Product WHERE storeID = NEW.storeid AND productID = NEW.productID;
 
+    -- appended only, the rollups are updated later by compact_sales_rollups()
+    INSERT INTO SalesRollupPending (storeID, productID, orderTime, unitsOrdered, revenue)
+    VALUES (NEW.storeid, NEW.productID, NEW.orderTime, NEW.unitsordered, NEW.unitsordered * price);
+    PERFORM maybe_compact_counters();
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER recordsales 
+AFTER INSERT ON orders 
+FOR EACH ROW
+EXECUTE PROCEDURE record_order_sales();
@@ -7,26 +7,61 @@ COPY Store
 FROM '/home/csmajs/tfern009/phase3/data/stores.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Product
+-- the csv files name products; they are loaded through staging tables
+-- and mapped to productIDs from ProductDictionary
+CREATE TEMP TABLE ProductStaging ( storeID integer, productName char(30), numberOfUnits integer, pricePerUnit float );
+COPY ProductStaging
 FROM '/home/csmajs/tfern009/phase3/data/products.csv'
 WITH DELIMITER ',' CSV HEADER;
 
+INSERT INTO ProductDictionary (productName)
+SELECT DISTINCT productName FROM ProductStaging ORDER BY productName;
+
+INSERT INTO Product (storeID, productID, numberOfUnits, pricePerUnit)
+SELECT s.storeID, d.productID, s.numberOfUnits, s.pricePerUnit
+FROM ProductStaging s, ProductDictionary d
+WHERE d.productName = s.productName;
+
 COPY Warehouse
 FROM '/home/csmajs/tfern009/phase3/data/warehouse.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Orders
+CREATE TEMP TABLE OrdersStaging ( orderNumber integer, customerID integer, storeID integer, productName char(30), unitsOrdered integer, orderTime timestamp );
+COPY OrdersStaging
 FROM '/home/csmajs/tfern009/phase3/data/orders.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+SELECT s.orderNumber, s.customerID, s.storeID, d.productID, s.unitsOrdered, s.orderTime
+FROM OrdersStaging s, ProductDictionary d
+WHERE d.productName = s.productName
+ORDER BY s.orderNumber;
 ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
 
 
-COPY ProductSupplyRequests
+CREATE TEMP TABLE SupplyRequestStaging ( requestNumber integer, managerID integer, warehouseID integer, storeID integer, productName char(30), unitsRequested integer );
+COPY SupplyRequestStaging
 FROM '/home/csmajs/tfern009/phase3/data/productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productID, unitsRequested)
+SELECT s.requestNumber, s.managerID, s.warehouseID, s.storeID, d.productID, s.unitsRequested
+FROM SupplyRequestStaging s, ProductDictionary d
+WHERE d.productName = s.productName
+ORDER BY s.requestNumber;
 ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
 
-COPY ProductUpdates
+CREATE TEMP TABLE ProductUpdateStaging ( updateNumber integer, managerID integer, storeID integer, productName char(30), updatedOn timestamp );
+COPY ProductUpdateStaging
 FROM '/home/csmajs/tfern009/phase3/data/productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productID, updatedOn)
+SELECT s.updateNumber, s.managerID, s.storeID, d.productID, s.updatedOn
+FROM ProductUpdateStaging s, ProductDictionary d
+WHERE d.productName = s.productName
+ORDER BY s.updateNumber;
 ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
+
+-- the loaded orders were appended to SalesRollupPending by the recordsales trigger
+SELECT compact_sales_rollups();
@@ -0,0 +1,251 @@
+-- Moves a database created with the productName-keyed schema over to
+-- ProductDictionary productIDs, keeping all existing rows. It starts from
+-- the original schema; the stock shard and sales rollup tables are carried
+-- over when they exist and created otherwise. Run it once and then
+-- reinstall the indexes and the trigger functions:
+--
+--    cs166_psql -p $PGPORT $USER"_phase3_DB" < migrate_product_ids.sql
+--    cs166_psql -p $PGPORT $USER"_phase3_DB" < create_indexes.sql
+--    cs166_psql -p $PGPORT $USER"_phase3_DB" < create_trigger.sql
+--
+-- The productName-keyed tables are copied aside, dropped and recreated
+-- exactly as in create_tables.sql, so columns keep the same order as in a
+-- freshly created database. Table sizes and the plans of the
+-- viewPopularProducts and viewAllOrders queries are printed before and
+-- after, so the two can be compared.
+
+\set ON_ERROR_STOP on
+
+\echo '==== before migration ===='
+SELECT relname AS table, pg_size_pretty(pg_relation_size(oid)) AS heap,
+       pg_size_pretty(pg_indexes_size(oid)) AS indexes,
+       pg_size_pretty(pg_total_relation_size(oid)) AS total
+FROM pg_class
+WHERE relname IN ('product', 'orders', 'productsupplyrequests', 'productupdates',
+                  'salesrolluphour', 'salesrollupday', 'salesrollupweek')
+ORDER BY relname;
+
+EXPLAIN ANALYZE
+SELECT productName, SUM(unitsOrdered) FROM Orders WHERE storeID = 1 GROUP BY productName ORDER BY SUM(unitsOrdered) DESC LIMIT 5;
+
+EXPLAIN ANALYZE
+SELECT o.ordernumber, u.name, s.storeid, o.productname, o.ordertime, o.unitsordered FROM orders o, store s, users u WHERE s.managerid = 25 AND s.storeid = o.storeid AND u.userid = o.customerid;
+
+BEGIN;
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+                   WHERE table_name = 'product' AND column_name = 'productname') THEN
+        RAISE EXCEPTION 'Product is not keyed by productName, nothing to migrate';
+    END IF;
+END;
+$$;
+
+CREATE TABLE ProductDictionary ( productID serial,
+                                 productName char(30) NOT NULL,
+                                 PRIMARY KEY(productID),
+                                 UNIQUE(productName)
+);
+INSERT INTO ProductDictionary (productName)
+SELECT DISTINCT productName FROM Product ORDER BY productName;
+
+-- copies of every productName-keyed table with the names resolved
+CREATE TEMP TABLE ProductCopy AS
+SELECT t.storeID, d.productID, t.numberOfUnits, t.pricePerUnit
+FROM Product t, ProductDictionary d WHERE d.productName = t.productName;
+
+CREATE TEMP TABLE OrdersCopy AS
+SELECT t.orderNumber, t.customerID, t.storeID, d.productID, t.unitsOrdered, t.orderTime
+FROM Orders t, ProductDictionary d WHERE d.productName = t.productName;
+
+CREATE TEMP TABLE ProductSupplyRequestsCopy AS
+SELECT t.requestNumber, t.managerID, t.warehouseID, t.storeID, d.productID, t.unitsRequested
+FROM ProductSupplyRequests t, ProductDictionary d WHERE d.productName = t.productName;
+
+CREATE TEMP TABLE ProductUpdatesCopy AS
+SELECT t.updateNumber, t.managerID, t.storeID, d.productID, t.updatedOn
+FROM ProductUpdates t, ProductDictionary d WHERE d.productName = t.productName;
+
+-- the stock shard and rollup tables only exist when the database was
+-- created with them; an empty copy stands in otherwise
+CREATE TEMP TABLE ProductStockShardCopy ( storeID integer, productID integer, shard integer, delta integer );
+CREATE TEMP TABLE SalesRollupCopy ( granularity text, storeID integer, productID integer, bucket timestamp, unitsOrdered bigint, revenue float );
+DO $$
+DECLARE
+    granularity text;
+BEGIN
+    IF to_regclass('productstockshard') IS NOT NULL THEN
+        INSERT INTO ProductStockShardCopy
+        SELECT t.storeID, d.productID, t.shard, t.delta
+        FROM ProductStockShard t, ProductDictionary d WHERE d.productName = t.productName;
+    END IF;
+    FOREACH granularity IN ARRAY ARRAY['Hour', 'Day', 'Week'] LOOP
+        IF to_regclass('salesrollup' || lower(granularity)) IS NOT NULL THEN
+            EXECUTE format('INSERT INTO SalesRollupCopy
+                            SELECT %L, t.storeID, d.productID, t.bucket, t.unitsOrdered, t.revenue
+                            FROM SalesRollup%s t, ProductDictionary d WHERE d.productName = t.productName',
+                           granularity, granularity);
+        END IF;
+    END LOOP;
+END;
+$$;
+
+-- dropping the tables also drops their triggers, keys and serial sequences
+DROP VIEW IF EXISTS ProductStock;
+DROP TABLE IF EXISTS SalesRollupHour CASCADE;
+DROP TABLE IF EXISTS SalesRollupDay CASCADE;
+DROP TABLE IF EXISTS SalesRollupWeek CASCADE;
+DROP TABLE IF EXISTS ProductStockShard CASCADE;
+DROP TABLE ProductUpdates CASCADE;
+DROP TABLE ProductSupplyRequests CASCADE;
+DROP TABLE Orders CASCADE;
+DROP TABLE Product CASCADE;
+
+-- as in create_tables.sql
+CREATE TABLE Product ( storeID integer NOT NULL,
+                       productID integer NOT NULL,
+                       numberOfUnits integer NOT NULL,
+                       pricePerUnit float NOT NULL,
+                       PRIMARY KEY(storeID, productID),
+                       FOREIGN KEY(storeID) REFERENCES Store(storeID)
+		               ON DELETE CASCADE,
+                       FOREIGN KEY(productID) REFERENCES ProductDictionary(productID)
+);
+
+CREATE TABLE Orders (
+					 orderNumber serial NOT NULL,
+					 customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     productID integer NOT NULL,
+                     unitsOrdered integer NOT NULL,
+                     orderTime timestamp NOT NULL,
+                     PRIMARY KEY(orderNumber),
+                     FOREIGN KEY(customerID) REFERENCES Users(userID),
+                     FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+);
+
+CREATE TABLE ProductSupplyRequests (
+							   requestNumber serial NOT NULL,
+							   managerID integer NOT NULL,    --User ID of the Manager who makes the supply request
+							   warehouseID integer NOT NULL,
+                               storeID integer NOT NULL,
+                               productID integer NOT NULL,
+							   unitsRequested integer NOT NULL,
+                               PRIMARY KEY(requestNumber),
+							   FOREIGN KEY(managerID) REFERENCES Users(userID),
+                               FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
+                               FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+);
+
+CREATE TABLE ProductUpdates (
+	 						updateNumber serial,
+							managerID integer NOT NULL,
+                        	storeID integer NOT NULL,
+                       		productID integer NOT NULL,
+                            updatedOn timestamp NOT NULL,
+                        	PRIMARY KEY(updateNumber),
+                        	FOREIGN KEY(managerID) REFERENCES Users(userID),
+                        	FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+);
+
+CREATE TABLE IF NOT EXISTS StockCounterConfig ( numberOfShards integer NOT NULL CHECK (numberOfShards >= 0) );
+ALTER TABLE StockCounterConfig ADD COLUMN IF NOT EXISTS compactEvery integer NOT NULL DEFAULT 10000 CHECK (compactEvery >= 0);
+INSERT INTO StockCounterConfig (numberOfShards) SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM StockCounterConfig);
+CREATE SEQUENCE IF NOT EXISTS CounterCompactionTicks;
+
+CREATE TABLE ProductStockShard ( storeID integer NOT NULL,
+                                 productID integer NOT NULL,
+                                 shard integer NOT NULL,
+                                 delta integer NOT NULL,
+                                 PRIMARY KEY(storeID, productID, shard),
+                                 FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+                                 ON DELETE CASCADE
+);
+
+CREATE VIEW ProductStock AS
+SELECT p.storeID, p.productID,
+       p.numberOfUnits + COALESCE((SELECT SUM(s.delta) FROM ProductStockShard s
+                                   WHERE s.storeID = p.storeID AND s.productID = p.productID), 0) AS numberOfUnits,
+       p.pricePerUnit
+FROM Product p;
+
+CREATE TABLE SalesRollupHour ( storeID integer NOT NULL,
+                               productID integer NOT NULL,
+                               bucket timestamp NOT NULL,   -- date_trunc('hour', orderTime)
+                               unitsOrdered bigint NOT NULL,
+                               revenue float NOT NULL,      -- unitsOrdered * pricePerUnit at order time
+                               PRIMARY KEY(storeID, bucket, productID)
+);
+
+CREATE TABLE SalesRollupDay ( storeID integer NOT NULL,
+                               productID integer NOT NULL,
+                               bucket timestamp NOT NULL,   -- date_trunc('day', orderTime)
+                               unitsOrdered bigint NOT NULL,
+                               revenue float NOT NULL,      -- unitsOrdered * pricePerUnit at order time
+                               PRIMARY KEY(storeID, bucket, productID)
+);
+
+CREATE TABLE SalesRollupWeek ( storeID integer NOT NULL,
+                               productID integer NOT NULL,
+                               bucket timestamp NOT NULL,   -- date_trunc('week', orderTime)
+                               unitsOrdered bigint NOT NULL,
+                               revenue float NOT NULL,      -- unitsOrdered * pricePerUnit at order time
+                               PRIMARY KEY(storeID, bucket, productID)
+);
+
+CREATE TABLE IF NOT EXISTS SalesRollupPending ( storeID integer NOT NULL,
+                                                productID integer NOT NULL,
+                                                orderTime timestamp NOT NULL,
+                                                unitsOrdered integer NOT NULL,
+                                                revenue float NOT NULL
+);
+
+-- no triggers are installed yet, so the copied orders do not change stock again
+INSERT INTO Product SELECT storeID, productID, numberOfUnits, pricePerUnit FROM ProductCopy;
+INSERT INTO Orders SELECT orderNumber, customerID, storeID, productID, unitsOrdered, orderTime FROM OrdersCopy ORDER BY orderNumber;
+INSERT INTO ProductSupplyRequests SELECT requestNumber, managerID, warehouseID, storeID, productID, unitsRequested FROM ProductSupplyRequestsCopy ORDER BY requestNumber;
+INSERT INTO ProductUpdates SELECT updateNumber, managerID, storeID, productID, updatedOn FROM ProductUpdatesCopy ORDER BY updateNumber;
+INSERT INTO ProductStockShard SELECT storeID, productID, shard, delta FROM ProductStockShardCopy;
+INSERT INTO SalesRollupHour SELECT storeID, productID, bucket, unitsOrdered, revenue FROM SalesRollupCopy WHERE granularity = 'Hour';
+INSERT INTO SalesRollupDay SELECT storeID, productID, bucket, unitsOrdered, revenue FROM SalesRollupCopy WHERE granularity = 'Day';
+INSERT INTO SalesRollupWeek SELECT storeID, productID, bucket, unitsOrdered, revenue FROM SalesRollupCopy WHERE granularity = 'Week';
+
+-- rollups were not kept before, so they are built from the copied orders
+INSERT INTO SalesRollupPending (storeID, productID, orderTime, unitsOrdered, revenue)
+SELECT o.storeID, o.productID, o.orderTime, o.unitsOrdered, o.unitsOrdered * p.pricePerUnit
+FROM OrdersCopy o, ProductCopy p
+WHERE p.storeID = o.storeID AND p.productID = o.productID
+  AND NOT EXISTS (SELECT 1 FROM SalesRollupCopy);
+
+-- the recreated serial columns continue after the copied rows
+SELECT setval(pg_get_serial_sequence('orders', 'ordernumber'), COALESCE(MAX(orderNumber), 0) + 1, false) FROM Orders;
+SELECT setval(pg_get_serial_sequence('productsupplyrequests', 'requestnumber'), COALESCE(MAX(requestNumber), 0) + 1, false) FROM ProductSupplyRequests;
+SELECT setval(pg_get_serial_sequence('productupdates', 'updatenumber'), COALESCE(MAX(updateNumber), 0) + 1, false) FROM ProductUpdates;
+
+COMMIT;
+
+ANALYZE Product;
+ANALYZE Orders;
+ANALYZE ProductSupplyRequests;
+ANALYZE ProductUpdates;
+ANALYZE ProductStockShard;
+ANALYZE SalesRollupHour;
+ANALYZE SalesRollupDay;
+ANALYZE SalesRollupWeek;
+ANALYZE SalesRollupPending;
+
+\echo '==== after migration ===='
+SELECT relname AS table, pg_size_pretty(pg_relation_size(oid)) AS heap,
+       pg_size_pretty(pg_indexes_size(oid)) AS indexes,
+       pg_size_pretty(pg_total_relation_size(oid)) AS total
+FROM pg_class
+WHERE relname IN ('product', 'productdictionary', 'orders', 'productsupplyrequests', 'productupdates',
+                  'salesrolluphour', 'salesrollupday', 'salesrollupweek')
+ORDER BY relname;
+
+EXPLAIN ANALYZE
+SELECT productID, SUM(unitsOrdered) FROM Orders WHERE storeID = 1 GROUP BY productID ORDER BY SUM(unitsOrdered) DESC LIMIT 5;
+
+EXPLAIN ANALYZE
+SELECT o.ordernumber, u.name, s.storeid, o.productid, o.ordertime, o.unitsordered FROM orders o, store s, users u WHERE s.managerid = 25 AND s.storeid = o.storeid AND u.userid = o.customerid;